@@ -1,6 +1,10 @@
 #include <jni.h>
 #include <string>
 #include <cstdlib>
+#include <cerrno>
+#include <cstring>
+#include <sched.h>
+#include <unistd.h>
 #include <android/log.h>
 
 #define LOG_TAG "NativeHelper"
@@ -101,4 +105,56 @@ Java_com_edgeai_chatappv2_NativeHelper_printDiagnosticInfoNative(JNIEnv *env, jc
     LOGI("----- End of Diagnostics -----");
 }
 
+/**
+ * Pin a thread to the CPU cores in the given bit mask (bit N = cpuN)
+ * A tid of 0 refers to the calling thread.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_edgeai_chatappv2_NativeHelper_setThreadAffinityNative(JNIEnv *env, jclass clazz, jint tid, jlong mask) {
+    if (mask == 0) {
+        LOGE("Refusing to apply an empty CPU mask");
+        return JNI_FALSE;
+    }
+
+    cpu_set_t cpuSet;
+    CPU_ZERO(&cpuSet);
+    for (int cpu = 0; cpu < 64 && cpu < CPU_SETSIZE; cpu++) {
+        if ((static_cast<uint64_t>(mask) >> cpu) & 1ULL) {
+            CPU_SET(cpu, &cpuSet);
+        }
+    }
+
+    pid_t target = tid == 0 ? gettid() : static_cast<pid_t>(tid);
+    if (sched_setaffinity(target, sizeof(cpuSet), &cpuSet) != 0) {
+        LOGE("sched_setaffinity(%d, 0x%llx) failed: %s", target,
+             static_cast<unsigned long long>(mask), strerror(errno));
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
+/**
+ * Get the CPU cores a thread may run on as a bit mask (bit N = cpuN), 0 on failure
+ * A tid of 0 refers to the calling thread.
+ */
+JNIEXPORT jlong JNICALL
+Java_com_edgeai_chatappv2_NativeHelper_getThreadAffinityNative(JNIEnv *env, jclass clazz, jint tid) {
+    cpu_set_t cpuSet;
+    CPU_ZERO(&cpuSet);
+
+    pid_t target = tid == 0 ? gettid() : static_cast<pid_t>(tid);
+    if (sched_getaffinity(target, sizeof(cpuSet), &cpuSet) != 0) {
+        LOGE("sched_getaffinity(%d) failed: %s", target, strerror(errno));
+        return 0;
+    }
+
+    uint64_t mask = 0;
+    for (int cpu = 0; cpu < 64 && cpu < CPU_SETSIZE; cpu++) {
+        if (CPU_ISSET(cpu, &cpuSet)) {
+            mask |= 1ULL << cpu;
+        }
+    }
+    return static_cast<jlong>(mask);
+}
+
 } // extern "C" 
\ No newline at end of file
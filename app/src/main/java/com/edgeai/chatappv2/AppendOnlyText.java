@@ -0,0 +1,111 @@
+package com.edgeai.chatappv2;
+
+import android.text.GetChars;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+
+/**
+ * AppendOnlyText: Growable text buffer for streamed messages.
+ * Characters are stored in fixed size chunks that are never reallocated or copied, so appending
+ * a token costs the same no matter how long the text already is. It implements GetChars so that
+ * TextView / SpannableStringBuilder can copy ranges without going through charAt().
+ * Appends are expected from a single thread, reads are safe from any thread.
+ */
+public final class AppendOnlyText implements CharSequence, GetChars {
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;  // 1024 chars per chunk
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final ArrayList<char[]> mChunks = new ArrayList<>();
+    private volatile int mLength;
+
+    public AppendOnlyText() {
+    }
+
+    public AppendOnlyText(CharSequence initial) {
+        append(initial);
+    }
+
+    /**
+     * append: Append text at the end of the buffer
+     * @param text: the text to append
+     */
+    public synchronized void append(CharSequence text) {
+        int srcPos = 0;
+        int srcEnd = text.length();
+        int length = mLength;
+        while (srcPos < srcEnd) {
+            int offset = length & CHUNK_MASK;
+            if (offset == 0 && (length >> CHUNK_SHIFT) == mChunks.size()) {
+                mChunks.add(new char[CHUNK_SIZE]);
+            }
+            char[] chunk = mChunks.get(length >> CHUNK_SHIFT);
+            int count = Math.min(CHUNK_SIZE - offset, srcEnd - srcPos);
+            if (text instanceof String) {
+                ((String) text).getChars(srcPos, srcPos + count, chunk, offset);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    chunk[offset + i] = text.charAt(srcPos + i);
+                }
+            }
+            srcPos += count;
+            length += count;
+        }
+        // Publish the new length only once the characters are in place
+        mLength = length;
+    }
+
+    /**
+     * clear: Remove all text, the first chunk is kept for reuse
+     */
+    public synchronized void clear() {
+        while (mChunks.size() > 1) {
+            mChunks.remove(mChunks.size() - 1);
+        }
+        mLength = 0;
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public synchronized char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        return mChunks.get(index >> CHUNK_SHIFT)[index & CHUNK_MASK];
+    }
+
+    @Override
+    public synchronized void getChars(int start, int end, char[] dest, int destoff) {
+        if (start < 0 || end > mLength || start > end) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end + ", length " + mLength);
+        }
+        while (start < end) {
+            int offset = start & CHUNK_MASK;
+            int count = Math.min(CHUNK_SIZE - offset, end - start);
+            System.arraycopy(mChunks.get(start >> CHUNK_SHIFT), offset, dest, destoff, count);
+            start += count;
+            destoff += count;
+        }
+    }
+
+    @NonNull
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return subSequence(0, mLength).toString();
+    }
+}
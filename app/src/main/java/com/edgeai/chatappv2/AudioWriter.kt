@@ -0,0 +1,252 @@
+package com.edgeai.chatappv2
+
+import android.os.Process
+import android.util.Log
+import com.edgeai.chatappv2.MainActivity.Companion.TAG
+import java.util.Locale
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * AudioWriter: Feeds the real-time AudioTrack from a dedicated audio thread.
+ * The TTS callback copies its samples into a ring buffer of a few seconds and returns;
+ * the writer thread drains the ring into the track in fixed-size chunks. Nothing is allocated per
+ * chunk and samples are played strictly in the order they were generated. A full ring blocks the
+ * producer until the track catches up, an empty ring before the end of the session is an underrun.
+ * After an underrun playback resumes, with a short fade-in, only once a little audio is queued again.
+ *
+ * The writer also grows the track's buffer when the track itself underruns, and samples its latency
+ * and underrun count into the session summary. Once a finished session is drained and the track's
+ * latency has passed, onPlayedOut reports the end of playback.
+ */
+class AudioWriter(private val sampleRate: Int, bufferSeconds: Int = 4) {
+
+    companion object {
+        private const val SECTION = "AudioWriter"
+
+        // Samples handed to the track per write, about 40 ms at 24 kHz
+        private const val CHUNK = 1024
+
+        // Upper bound of a wait, in case a wake-up raced with the other thread going to sleep
+        private const val PARK_NANOS = 5_000_000L
+
+        // After an underrun, playback resumes once this much audio is queued, instead of
+        // stuttering through every short stall of the decoder
+        private const val REBUFFER_MS = 80
+
+        // Playback resumes with a short fade-in, so the restart does not click
+        private const val FADE_IN_SAMPLES = 96
+
+        // Output telemetry is sampled every few chunks, about every 300 ms
+        private const val TELEMETRY_CHUNKS = 8
+
+        // Time for the last samples to leave the track when its latency is unknown, and at most
+        private const val DEFAULT_PLAYOUT_MS = 200.0
+        private const val MAX_PLAYOUT_MS = 1000.0
+    }
+
+    private val ring = FloatRingBuffer(sampleRate * bufferSeconds)
+    private val scratch = FloatArray(CHUNK)
+    private val thread = Thread({ run() }, "audio-writer")
+
+    @Volatile private var stopped = false
+
+    /**
+     * Called on the writer thread once every sample of a finished session has been played,
+     * never for a stopped session
+     */
+    @Volatile var onPlayedOut: (() -> Unit)? = null
+    @Volatile private var finished = false
+    @Volatile private var producer: Thread? = null
+
+    // Statistics
+    @Volatile var underruns = 0
+        private set
+    @Volatile var producerWaits = 0
+        private set
+    @Volatile private var maxFill = 0
+    @Volatile private var played = 0L
+
+    // Output telemetry, writer thread only
+    private val startNanos = System.nanoTime()
+    private var firstAudioMs = Double.NaN
+    private var trackUnderruns = 0
+    private var latencySumMs = 0.0
+    private var latencyMaxMs = 0.0
+    private var latencySamples = 0
+    @Volatile var telemetry: OutputTelemetry? = null
+        private set
+
+    /**
+     * Samples waiting to be played
+     */
+    val fill: Int
+        get() = ring.size
+
+    /**
+     * Audio waiting to be played, in milliseconds
+     */
+    val fillMs: Double
+        get() = ring.size * 1000.0 / sampleRate
+
+    /**
+     * Whether the session was stopped, producers of the session should stop too
+     */
+    val isStopped: Boolean
+        get() = stopped
+
+    fun start() {
+        thread.start()
+    }
+
+    /**
+     * write: Queue samples for playback, called by the TTS callback.
+     * Blocks while the ring is full.
+     *
+     * @return false once the session was stopped, the generation should stop too
+     */
+    fun write(samples: FloatArray, offset: Int = 0, length: Int = samples.size): Boolean {
+        var position = offset
+        var remaining = length
+        while (remaining > 0) {
+            if (stopped) return false
+            val n = ring.write(samples, position, remaining)
+            position += n
+            remaining -= n
+            if (n > 0) {
+                maxFill = maxOf(maxFill, ring.size)
+                LockSupport.unpark(thread)
+            }
+            if (remaining > 0) {
+                producerWaits++
+                producer = Thread.currentThread()
+                if (ring.free == 0 && !stopped) {
+                    LockSupport.parkNanos(this, PARK_NANOS)
+                }
+                producer = null
+            }
+        }
+        return true
+    }
+
+    /**
+     * finish: No more samples will be written, the writer exits once the ring is drained
+     */
+    fun finish() {
+        finished = true
+        LockSupport.unpark(thread)
+    }
+
+    /**
+     * stop: Abort the session, queued samples are dropped
+     */
+    fun stop() {
+        stopped = true
+        LockSupport.unpark(thread)
+        producer?.let { LockSupport.unpark(it) }
+    }
+
+    /**
+     * summary: Session statistics
+     */
+    fun summary(): String {
+        return String.format(Locale.ENGLISH,
+            "%.2f s played, %d underruns, max fill %.0f ms of %.0f ms, producer blocked %d times; " +
+                "track: first audio after %.0f ms, %d underruns, buffer %d frames, latency avg %.1f ms max %.1f ms",
+            played.toDouble() / sampleRate, underruns, maxFill * 1000.0 / sampleRate,
+            ring.capacity * 1000.0 / sampleRate, producerWaits,
+            firstAudioMs, trackUnderruns, telemetry?.bufferSizeFrames ?: 0,
+            if (latencySamples > 0) latencySumMs / latencySamples else Double.NaN, latencyMaxMs)
+    }
+
+    private fun run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO)
+        val rebufferSamples = sampleRate * REBUFFER_MS / 1000
+        var playing = false
+        var rebuffering = false
+        var chunks = 0
+        var drained = false
+        while (!stopped) {
+            // Read the flag first, samples written before finish() are then always seen
+            val done = finished
+            if (rebuffering && !done && ring.size < rebufferSamples) {
+                LockSupport.parkNanos(this, PARK_NANOS)
+                continue
+            }
+            val n = ring.read(scratch, 0, CHUNK)
+            if (n == 0) {
+                if (done) {
+                    drained = true
+                    break
+                }
+                if (playing) {
+                    underruns++
+                    playing = false
+                    rebuffering = true
+                }
+                LockSupport.parkNanos(this, PARK_NANOS)
+                continue
+            }
+
+            if (rebuffering) {
+                fadeIn(n)
+                rebuffering = false
+            }
+            playing = true
+            producer?.let { LockSupport.unpark(it) }
+            try {
+                TtsEngine.trackWrite(scratch, 0, n)
+            } catch (e: Exception) {
+                Log.e(TAG, "Error writing TTS samples: ${e.message}")
+                break
+            }
+            played += n
+
+            if (TtsEngine.tuneOutputBuffer()) {
+                trackUnderruns++
+            }
+            if (++chunks % TELEMETRY_CHUNKS == 0 || firstAudioMs.isNaN()) {
+                sampleTelemetry()
+            }
+        }
+        PerfLog.record(SECTION, summary())
+
+        if (drained) {
+            awaitPlayout()
+            if (!stopped) {
+                onPlayedOut?.invoke()
+            }
+        }
+    }
+
+    /**
+     * Wait until the samples written last have left the track, by its measured output latency
+     */
+    private fun awaitPlayout() {
+        val latencyMs = TtsEngine.outputTelemetry()?.outputLatencyMs ?: Double.NaN
+        val waitMs = if (latencyMs.isNaN()) DEFAULT_PLAYOUT_MS else minOf(latencyMs, MAX_PLAYOUT_MS)
+        val deadline = System.nanoTime() + (waitMs * 1e6).toLong()
+        while (!stopped && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(this, PARK_NANOS)
+        }
+    }
+
+    private fun fadeIn(n: Int) {
+        val length = minOf(n, FADE_IN_SAMPLES)
+        for (i in 0 until length) {
+            scratch[i] *= i.toFloat() / length
+        }
+    }
+
+    private fun sampleTelemetry() {
+        val current = TtsEngine.outputTelemetry() ?: return
+        telemetry = current
+        if (firstAudioMs.isNaN() && current.framesPlayed > 0) {
+            firstAudioMs = (System.nanoTime() - startNanos) / 1e6
+        }
+        if (!current.outputLatencyMs.isNaN() && current.framesPlayed > 0) {
+            latencySumMs += current.outputLatencyMs
+            latencyMaxMs = maxOf(latencyMaxMs, current.outputLatencyMs)
+            latencySamples++
+        }
+    }
+}
@@ -5,20 +5,20 @@ package com.edgeai.chatappv2;
  */
 public class ChatMessage {
 
-    private String mMessage;
-    private int mLength;
+    private final AppendOnlyText mText;
+    private String mMessageCache; // String view of mText, rebuilt only when the text has grown
     public MessageSender mSender;
     private double msToFirstToken;
-    private double totalGenerationTimeMs; // Changed from msToLastToken to be more explicit
+    private volatile double totalGenerationTimeMs; // Changed from msToLastToken to be more explicit
     private long startTimeMs; // Store the original start time
     private boolean isFirstTokenTimeSet = false;
     private double transcriptionTimeMs = 0; // Time it took to transcribe voice input
     private boolean isFromVoiceInput = false; // Flag to indicate if message is from voice input
+    private long storeIndex = -1; // Index in the MessageStore, -1 if not persisted
 
     public ChatMessage(String msg, MessageSender sender) {
-        mMessage = msg;
+        mText = new AppendOnlyText(msg);
         mSender = sender;
-        mLength = msg.length();
         startTimeMs = System.currentTimeMillis(); // Initialize start time
     }
 
@@ -29,8 +29,7 @@ public class ChatMessage {
      * @param timeUntilFirstToken: the time it took to generate the first token
      */
     public ChatMessage(String msg, MessageSender sender, double timeUntilFirstToken) {
-        mMessage = msg;
-        mLength = msg.length();
+        mText = new AppendOnlyText(msg);
         mSender = sender;
         msToFirstToken = timeUntilFirstToken;
         totalGenerationTimeMs = timeUntilFirstToken; // Initialize total time to at least first token time
@@ -45,14 +44,34 @@ public class ChatMessage {
      * @param transcriptionTime: the time it took to transcribe the voice input in milliseconds
      */
     public ChatMessage(String msg, MessageSender sender, double transcriptionTime, boolean isVoiceInput) {
-        mMessage = msg;
-        mLength = msg.length();
+        mText = new AppendOnlyText(msg);
         mSender = sender;
         transcriptionTimeMs = transcriptionTime;
         isFromVoiceInput = isVoiceInput;
         startTimeMs = System.currentTimeMillis(); // Initialize start time
     }
 
+    /**
+     * ChatMessage: Constructor for a message restored from the MessageStore
+     * @param msg: the message
+     * @param sender: the sender of the message
+     * @param timeUntilFirstToken: the time it took to generate the first token
+     * @param totalGenerationTime: the time it took to generate all tokens
+     * @param transcriptionTime: the time it took to transcribe the voice input in milliseconds
+     * @param isVoiceInput: true if the message is from voice input
+     */
+    ChatMessage(String msg, MessageSender sender, double timeUntilFirstToken, double totalGenerationTime,
+                double transcriptionTime, boolean isVoiceInput) {
+        mText = new AppendOnlyText(msg);
+        mSender = sender;
+        msToFirstToken = timeUntilFirstToken;
+        totalGenerationTimeMs = totalGenerationTime;
+        isFirstTokenTimeSet = timeUntilFirstToken > 0;
+        transcriptionTimeMs = transcriptionTime;
+        isFromVoiceInput = isVoiceInput;
+        startTimeMs = System.currentTimeMillis() - (long)totalGenerationTime;
+    }
+
     /**
      * isMessageFromUser: Check if the message is from the user
      *
@@ -68,7 +87,21 @@ public class ChatMessage {
      * @return the message
      */
     public String getMessage() {
-        return mMessage;
+        String cached = mMessageCache;
+        if (cached == null || cached.length() != mText.length()) {
+            cached = mText.toString();
+            mMessageCache = cached;
+        }
+        return cached;
+    }
+
+    /**
+     * getText: Get the message without copying it, for incremental rendering
+     *
+     * @return the append-only message text
+     */
+    public CharSequence getText() {
+        return mText;
     }
 
     /**
@@ -77,7 +110,7 @@ public class ChatMessage {
      * @return the length of the message
      */
     public int getLength() {
-        return mLength;
+        return mText.length();
     }
 
     /**
@@ -85,8 +118,17 @@ public class ChatMessage {
      * @param message: the message to set
      */
     public void setMessage(String message) {
-        mMessage = message;
-        mLength = message.length();
+        mText.clear();
+        mText.append(message);
+        mMessageCache = null;
+    }
+
+    /**
+     * appendMessage: Append streamed text to the message without copying what is already there
+     * @param text: the text to append
+     */
+    public void appendMessage(CharSequence text) {
+        mText.append(text);
     }
 
     /**
@@ -163,6 +205,13 @@ public class ChatMessage {
         return transcriptionTimeMs / 1000.0;
     }
 
+    /**
+     * Returns transcription time in milliseconds
+     */
+    public double getTranscriptionTimeMs() {
+        return transcriptionTimeMs;
+    }
+
     /**
      * Returns true if the message is from voice input
      */
@@ -177,4 +226,21 @@ public class ChatMessage {
         transcriptionTimeMs = transcriptionTime;
         isFromVoiceInput = true;
     }
+
+    /**
+     * getStoreIndex: Get the index of the message in the MessageStore
+     *
+     * @return the index, -1 if the message has not been persisted
+     */
+    public long getStoreIndex() {
+        return storeIndex;
+    }
+
+    /**
+     * setStoreIndex: Set the index of the message in the MessageStore
+     * @param index: the index
+     */
+    public void setStoreIndex(long index) {
+        storeIndex = index;
+    }
 }
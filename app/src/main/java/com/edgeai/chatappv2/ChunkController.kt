@@ -0,0 +1,90 @@
+package com.edgeai.chatappv2
+
+import java.util.Locale
+
+/**
+ * ChunkController: Decides how much streamed text is synthesized at a time.
+ * The first chunk of an answer is a short clause, so the first audio does not wait for a long
+ * sentence to stream in and be synthesized. After that a chunk only has to be synthesized before
+ * the audio already queued runs out: the word limit follows from the queued audio, the measured
+ * real-time factor of Kokoro and the measured speech duration per word. With enough audio queued,
+ * or chunks still waiting for synthesis, whole sentences are spoken again for better prosody.
+ */
+class ChunkController {
+
+    companion object {
+        private const val SECTION = "Chunking"
+
+        // Words of the first chunk, it is cut at a clause break after half of them
+        private const val FIRST_CHUNK_WORDS = 6
+
+        // Shorter chunks cost more in per-call overhead than they save in latency
+        private const val MIN_CHUNK_WORDS = 4
+
+        // Limits above this are whole sentences in practice
+        private const val MAX_CHUNK_WORDS = 40
+
+        // Synthesis has to finish this many times faster than the queued audio plays
+        private const val SAFETY = 1.5
+
+        // Weight of a new measurement in the running averages
+        private const val SMOOTHING = 0.3
+    }
+
+    // Running averages, seeded with typical Kokoro values on a big core
+    @Volatile private var rtf = 0.4
+    @Volatile private var secondsPerWord = 0.35
+
+    @Volatile private var chunks = 0
+    @Volatile private var shortChunks = 0
+
+    /**
+     * wordLimit: Word limit for the text that is appended next
+     *
+     * @param bufferedMs audio queued for playback
+     * @param pending chunks waiting for synthesis
+     */
+    fun wordLimit(bufferedMs: Double, pending: Int): Int {
+        if (chunks == 0 && pending == 0) return FIRST_CHUNK_WORDS
+        if (pending > 0) return Int.MAX_VALUE
+
+        val secondsPerChunkWord = secondsPerWord * rtf * SAFETY
+        val words = (bufferedMs / 1000 / secondsPerChunkWord).toInt()
+        return if (words >= MAX_CHUNK_WORDS) Int.MAX_VALUE else maxOf(MIN_CHUNK_WORDS, words)
+    }
+
+    /**
+     * onChunk: A chunk was emitted under the given word limit
+     */
+    fun onChunk(limit: Int) {
+        chunks++
+        if (limit != Int.MAX_VALUE) {
+            shortChunks++
+        }
+    }
+
+    /**
+     * recordSynthesis: Measured synthesis of a chunk, updates the real-time factor and speech rate
+     */
+    fun recordSynthesis(words: Int, elapsedSeconds: Double, audioSeconds: Double) {
+        if (audioSeconds <= 0 || words == 0) return
+        rtf += SMOOTHING * (elapsedSeconds / audioSeconds - rtf)
+        secondsPerWord += SMOOTHING * (audioSeconds / words - secondsPerWord)
+    }
+
+    /**
+     * reset: Start a new answer, the measurements are kept
+     */
+    fun reset() {
+        chunks = 0
+        shortChunks = 0
+    }
+
+    /**
+     * record: Log the chunking of the answer
+     */
+    fun record() {
+        PerfLog.record(SECTION, String.format(Locale.ENGLISH,
+            "%d chunks, %d cut short; RTF %.2f, %.2f s of speech per word", chunks, shortChunks, rtf, secondsPerWord))
+    }
+}
@@ -20,8 +20,10 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -32,9 +34,7 @@ import android.media.AudioManager;
 
 public class Conversation extends AppCompatActivity {
 
-    ArrayList<ChatMessage> messages = new ArrayList<ChatMessage>(1000);
-
-    private static final String cWelcomeMessage = "Hi! How can I help you?";
+    private static final String cWelcomeMessage = PhraseBank.WELCOME;
     public static final String cConversationActivityKeyHtpConfig = "htp_config_path";
     public static final String cConversationActivityKeyModelName = "model_dir_name";
     
@@ -49,11 +49,23 @@ public class Conversation extends AppCompatActivity {
     private String htpExtensionsDir;
     private String modelName;
     private GenieWrapper genieWrapper;
+    private IntentRouter intentRouter;
+    private MessageStore store;
+    private SearchIndex searchIndex;
+    private ConversationModel model;
+    private ConversationHistory history;
+    private StreamingRenderer renderer;
+    private MessageRecyclerViewAdapter adapter;
+    private JankMonitor jankMonitor;
     private String TAG = "ChatApp";
     // Toggle for real-time TTS
     private boolean enableRealtimeTts = false;
     private ToggleButton toggleRealtimeTts;
 
+    // Real-time TTS state of the answer being generated, main thread only
+    private boolean ttsTurnEnabled = false;
+    private boolean ttsSpeakingStarted = false;
+
     private final ActivityResultLauncher<String[]> requestPermissionLauncher =
             registerForActivityResult(new ActivityResultContracts.RequestMultiplePermissions(),
                     isGranted -> {
@@ -103,15 +115,43 @@ public class Conversation extends AppCompatActivity {
         PreferenceHelper preferenceHelper = new PreferenceHelper(this);
         TtsEngine.speed = preferenceHelper.getSpeed();
         TtsEngine.speakerId = preferenceHelper.getSpeakerId();
+
+        // Answer trivial requests locally before they reach the LLM
+        intentRouter = new IntentRouter(this);
         
+        // The conversation is owned by the model, the UI only applies its snapshots
+        try {
+            store = new MessageStore(new File(getFilesDir(), "history"));
+            searchIndex = new SearchIndex(new File(getFilesDir(), "search.idx"));
+            buildSearchIndex();
+        } catch (IOException e) {
+            Log.e(TAG, "Conversation history unavailable: " + e.getMessage());
+        }
+        model = new ConversationModel(store, searchIndex);
+
         // Initialize UI components
         RecyclerView recyclerView = findViewById(R.id.chat_recycler_view);
-        MessageRecyclerViewAdapter adapter = new MessageRecyclerViewAdapter(this, messages);
+        adapter = new MessageRecyclerViewAdapter(this, model);
         recyclerView.setAdapter(adapter);
         LinearLayoutManager layoutManager = new LinearLayoutManager(this);
         layoutManager.setStackFromEnd(true);
         recyclerView.setLayoutManager(layoutManager);
 
+        // Older and newer pages of the persisted history load on scroll
+        if (store != null) {
+            history = new ConversationHistory(store, model, recyclerView);
+        }
+
+        // Snapshots are applied at most once per display frame
+        renderer = new StreamingRenderer(recyclerView, this::onConversationFrame);
+        model.setListener(renderer);
+
+        // Frame times of every turn go to the performance log
+        jankMonitor = new JankMonitor(getWindow(), () -> adapter.isSpeaking());
+
+        // Restore the latest page of the history, greeting only at the start of a new conversation
+        model.post(new ConversationEvent.Open(cWelcomeMessage));
+
         recordButton = findViewById(R.id.record_button);
         recordingIndicator = findViewById(R.id.recording_indicator);
         transcriptionStatus = findViewById(R.id.transcription_status);
@@ -120,6 +160,17 @@ public class Conversation extends AppCompatActivity {
         userInput = findViewById(R.id.user_input);
         sendButton = findViewById(R.id.send_button);
         
+        // Search the history, picking a result scrolls the conversation to it
+        ImageButton searchButton = findViewById(R.id.search_button);
+        searchButton.setOnClickListener(v -> {
+            if (searchIndex == null) {
+                Toast.makeText(this, "Conversation history unavailable", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            new SearchDialog(this, searchIndex, store,
+                    index -> model.post(new ConversationEvent.Reveal(index))).show();
+        });
+
         // Find the TTS settings button and set up listener
         ImageButton ttsSettingsButton = findViewById(R.id.tts_settings_button);
         ttsSettingsButton.setOnClickListener(v -> {
@@ -171,12 +222,12 @@ public class Conversation extends AppCompatActivity {
             String externalCacheDir = this.getExternalCacheDir().getAbsolutePath().toString();
             String modelDir = Paths.get(externalCacheDir, "models", modelName).toString();
 
-            // Load Model
-            genieWrapper = new GenieWrapper(modelDir, htpExtensionsDir);
+            // Load Model, Genie worker threads inherit the LLM thread placement
+            final String htpConfigPath = htpExtensionsDir;
+            genieWrapper = ThreadPlacement.withPlacement(InferenceRole.LLM,
+                    () -> new GenieWrapper(modelDir, htpConfigPath));
             Log.i("ChatApp", modelName + " Loaded.");
 
-            messages.add(new ChatMessage(cWelcomeMessage, MessageSender.BOT));
-            
             // Setup Whisper model loading button
             setupWhisperButton();
             
@@ -202,6 +253,44 @@ public class Conversation extends AppCompatActivity {
         }
     }
     
+    /**
+     * Loads the persisted search index and indexes the messages committed since it was saved
+     */
+    private void buildSearchIndex() {
+        final MessageStore messages = store;
+        final SearchIndex index = searchIndex;
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        service.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                index.load();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to load search index, rebuilding it: " + e.getMessage());
+            }
+            long loaded = System.nanoTime();
+
+            long from = index.covered();
+            long to = messages.size();
+            try {
+                for (long i = from; i < to; i += ConversationModel.PAGE_SIZE) {
+                    for (ChatMessage msg : messages.read(i, ConversationModel.PAGE_SIZE)) {
+                        index.add(msg.getStoreIndex(), msg.getMessage());
+                    }
+                }
+                index.setCovered(to);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to build search index: " + e.getMessage());
+            }
+
+            double buildMs = (System.nanoTime() - loaded) / 1e6;
+            PerfLog.record("SearchIndex", String.format(Locale.ENGLISH,
+                    "Loaded in %.2f ms, indexed %d messages in %.2f ms (%.0f messages/s), %s",
+                    (loaded - start) / 1e6, to - from, buildMs,
+                    buildMs > 0 ? (to - from) * 1000.0 / buildMs : 0.0, index.summary()));
+        });
+        service.shutdown();
+    }
+
     private void setupWhisperButton() {
         loadWhisperButton.setOnClickListener(view -> {
             loadWhisperButton.setEnabled(false);
@@ -380,77 +469,14 @@ public class Conversation extends AppCompatActivity {
             userInput.setText("");
 
             // Insert user message in the conversation with transcription time
-            RecyclerView recyclerView = findViewById(R.id.chat_recycler_view);
-            MessageRecyclerViewAdapter adapter = (MessageRecyclerViewAdapter) recyclerView.getAdapter();
-            
-            // Create a voice transcription message with the transcription time
-            assert adapter != null;
-            adapter.addVoiceTranscriptionMessage(userInputText, transcriptionTime);
-            adapter.notifyItemInserted(adapter.getItemCount() - 1);
+            model.post(new ConversationEvent.UserMessage(userInputText, transcriptionTime));
 
-            // Scroll to bottom after adding user message
-            recyclerView.smoothScrollToPosition(adapter.getItemCount() - 1);
+            // Skip the LLM entirely for requests that can be answered on-device
+            if (answerLocally(userInputText)) {
+                return;
+            }
 
-            ExecutorService service = Executors.newSingleThreadExecutor();
-            service.execute(new Runnable() {
-                @Override
-                public void run() {
-                    final long startTime = System.currentTimeMillis();
-                    
-                    // Track if real-time TTS is enabled
-                    final boolean isRealtimeTtsEnabled = enableRealtimeTts;
-                    
-                    // Flag to track if we've started speaking yet
-                    final boolean[] isSpeakingStarted = {false};
-                    
-                    // Track accumulated text for speech
-                    final StringBuilder speechBuffer = new StringBuilder();
-                    
-                    genieWrapper.getResponseForPrompt(userInputText, new StringCallback() {
-                        @Override
-                        public void onNewString(String response) {
-                            runOnUiThread(() -> {
-                                // Update the last item in the adapter
-                                adapter.updateBotMessage(response, startTime);                        
-                                adapter.notifyItemChanged(messages.size() - 1);
-                                
-                                // Always scroll to bottom when receiving new message content
-                                recyclerView.smoothScrollToPosition(adapter.getItemCount() - 1);
-                                
-                                // Handle real-time TTS if enabled
-                                if (isRealtimeTtsEnabled) {
-                                    // First check audio state
-                                    if (!checkAudioBeforeTts()) {
-                                        // Skip TTS if audio issues detected
-                                        Log.w(TAG, "Skipping TTS due to audio issues");
-                                        return;
-                                    }
-                                    
-                                    // Accumulate text for speech
-                                    speechBuffer.append(response);
-                                    
-                                    // If we haven't started speaking and have enough text, start speaking
-                                    if (!isSpeakingStarted[0] && speechBuffer.length() > 30) {
-                                        isSpeakingStarted[0] = true;
-                                        
-                                        // Start real-time TTS playback
-                                        String textToSpeak = speechBuffer.toString();
-                                        adapter.startStreamingTTSPlayback(textToSpeak);
-                                        
-                                        // Clear buffer since we're now in continuous playback mode
-                                        speechBuffer.setLength(0);
-                                    }
-                                    // If we're already speaking and have a new chunk, send it for continuous processing
-                                    else if (isSpeakingStarted[0] && !response.isEmpty()) {
-                                        // Append new text to TTS
-                                        adapter.appendStreamingTTS(response);
-                                    }
-                                }
-                            });
-                        }
-                    });
-                }
-            });
+            generateBotResponse(userInputText);
         }
     }
     
@@ -461,78 +487,149 @@ public class Conversation extends AppCompatActivity {
             userInput.setText("");
 
             // Insert user message in the conversation (regular text input, not voice)
-            RecyclerView recyclerView = findViewById(R.id.chat_recycler_view);
-            MessageRecyclerViewAdapter adapter = (MessageRecyclerViewAdapter) recyclerView.getAdapter();
-            assert adapter != null;
-            adapter.addMessage(new ChatMessage(userInputText, MessageSender.USER));
-            adapter.notifyItemInserted(adapter.getItemCount() - 1);
+            model.post(new ConversationEvent.UserMessage(userInputText, 0));
 
-            // Scroll to bottom after adding user message
-            recyclerView.smoothScrollToPosition(adapter.getItemCount() - 1);
+            // Skip the LLM entirely for requests that can be answered on-device
+            if (answerLocally(userInputText)) {
+                return;
+            }
 
-            ExecutorService service = Executors.newSingleThreadExecutor();
-            service.execute(new Runnable() {
-                @Override
-                public void run() {
-                    final long startTime = System.currentTimeMillis();
-                    
-                    // Track if real-time TTS is enabled
-                    final boolean isRealtimeTtsEnabled = enableRealtimeTts;
-                    
-                    // Flag to track if we've started speaking yet
-                    final boolean[] isSpeakingStarted = {false};
-                    
-                    // Track accumulated text for speech
-                    final StringBuilder speechBuffer = new StringBuilder();
-                    
-                    genieWrapper.getResponseForPrompt(userInputText, new StringCallback() {
-                        @Override
-                        public void onNewString(String response) {
-                            runOnUiThread(() -> {
-                                // Update the last item in the adapter
-                                adapter.updateBotMessage(response, startTime);                        
-                                adapter.notifyItemChanged(messages.size() - 1);
-                                
-                                // Always scroll to bottom when receiving new message content
-                                recyclerView.smoothScrollToPosition(adapter.getItemCount() - 1);
-                                
-                                // Handle real-time TTS if enabled
-                                if (isRealtimeTtsEnabled) {
-                                    // First check audio state
-                                    if (!checkAudioBeforeTts()) {
-                                        // Skip TTS if audio issues detected
-                                        Log.w(TAG, "Skipping TTS due to audio issues");
-                                        return;
-                                    }
-                                    
-                                    // Accumulate text for speech
-                                    speechBuffer.append(response);
-                                    
-                                    // If we haven't started speaking and have enough text, start speaking
-                                    if (!isSpeakingStarted[0] && speechBuffer.length() > 30) {
-                                        isSpeakingStarted[0] = true;
-                                        
-                                        // Start real-time TTS playback
-                                        String textToSpeak = speechBuffer.toString();
-                                        adapter.startStreamingTTSPlayback(textToSpeak);
-                                        
-                                        // Clear buffer since we're now in continuous playback mode
-                                        speechBuffer.setLength(0);
-                                    }
-                                    // If we're already speaking and have a new chunk, send it for continuous processing
-                                    else if (isSpeakingStarted[0] && !response.isEmpty()) {
-                                        // Append new text to TTS
-                                        adapter.appendStreamingTTS(response);
-                                    }
-                                }
-                            });
-                        }
-                    });
+            generateBotResponse(userInputText);
+        }
+    }
+    
+    /**
+     * Streams the LLM response for the given prompt into the conversation
+     * @param prompt The user input to respond to
+     */
+    private void generateBotResponse(String prompt) {
+        final long startTime = System.currentTimeMillis();
+
+        // Real-time TTS follows the toggle as it was when the prompt was sent
+        ttsTurnEnabled = enableRealtimeTts;
+        ttsSpeakingStarted = false;
+
+        jankMonitor.beginTurn();
+        model.post(new ConversationEvent.GenerationStart(startTime));
+
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        service.execute(() -> {
+            ThreadPlacement.apply(InferenceRole.LLM);
+
+            // Token count and first token time for throughput reporting
+            final long[] tokenStats = {0, 0};
+
+            genieWrapper.getResponseForPrompt(prompt, response -> {
+                if (tokenStats[0]++ == 0) {
+                    tokenStats[1] = System.nanoTime();
                 }
+                model.post(new ConversationEvent.TokenBatch(response));
             });
+            model.post(ConversationEvent.GenerationEnd.INSTANCE);
+
+            // Feed the router's latency-saved estimate
+            intentRouter.recordLlmTurn(System.currentTimeMillis() - startTime);
+            double tokenSeconds = (System.nanoTime() - tokenStats[1]) / 1e9;
+            ThreadPlacement.recordTokenRate((int) tokenStats[0], tokenSeconds);
+            jankMonitor.recordTokens((int) tokenStats[0], tokenSeconds);
+        });
+        // Let the worker thread exit once the response is complete
+        service.shutdown();
+    }
+
+    /**
+     * Applies a conversation snapshot to the UI, called once per display frame
+     * @param snapshot The latest snapshot published by the model
+     * @param changes The changes since the previous frame
+     */
+    private void onConversationFrame(ConversationSnapshot snapshot, List<ConversationChange> changes) {
+        adapter.submit(snapshot, changes);
+        if (history != null) {
+            history.onSnapshotApplied(snapshot);
+        }
+        boolean finished = false;
+        for (ConversationChange change : changes) {
+            if (change instanceof ConversationChange.GenerationFinished) {
+                jankMonitor.onGenerationFinished();
+                finished = true;
+            }
+        }
+
+        if (!ttsTurnEnabled) {
+            return;
+        }
+
+        // Only the text streamed since the previous frame is new
+        StringBuilder chunk = new StringBuilder();
+        for (ConversationChange change : changes) {
+            if (change instanceof ConversationChange.Appended) {
+                ConversationChange.Appended appended = (ConversationChange.Appended) change;
+                chunk.append(appended.getMessage().getText(), appended.getFrom(), appended.getTo());
+            }
+        }
+        if (chunk.length() > 0) {
+            speakStreamedText(chunk.toString());
+        }
+        if (finished) {
+            // Speak the last sentence even if it has no closing punctuation
+            ttsTurnEnabled = false;
+            if (ttsSpeakingStarted) {
+                adapter.finishStreamingTTS();
+            }
         }
     }
-    
+
+    /**
+     * Feeds streamed answer text to real-time TTS
+     * @param chunk The text streamed since the previous frame
+     */
+    private void speakStreamedText(String chunk) {
+        // First check audio state
+        if (!checkAudioBeforeTts()) {
+            // Skip TTS if audio issues detected
+            Log.w(TAG, "Skipping TTS due to audio issues");
+            return;
+        }
+
+        // Start real-time TTS playback with the first text, every sentence is spoken once complete
+        if (!ttsSpeakingStarted) {
+            ttsSpeakingStarted = true;
+            adapter.startStreamingTTSPlayback(chunk);
+        }
+        // If we're already speaking and have a new chunk, send it for continuous processing
+        else if (!chunk.isEmpty()) {
+            // Append new text to TTS
+            adapter.appendStreamingTTS(chunk);
+        }
+    }
+
+    /**
+     * Answers the user input on-device if it matches a known intent
+     * @param userInputText The user input
+     * @return true if the input was handled without querying the LLM
+     */
+    private boolean answerLocally(String userInputText) {
+        IntentRouter.Resolution resolution = intentRouter.route(userInputText,
+                model.getSnapshot().lastBotMessage());
+        if (resolution == null) {
+            return false;
+        }
+
+        boolean isStop = resolution.getIntent() == LocalIntent.STOP_SPEECH;
+        if (isStop) {
+            adapter.stopSpeaking();
+        }
+
+        model.post(new ConversationEvent.BotMessage(resolution.getReply()));
+
+        // Speak the local answer the same way a streamed LLM answer would be spoken
+        if (enableRealtimeTts && !isStop && checkAudioBeforeTts()) {
+            adapter.startStreamingTTSPlayback(resolution.getReply());
+            adapter.finishStreamingTTS();
+        }
+        return true;
+    }
+
     /**
      * Set up audio system for optimal TTS playback
      */
@@ -630,13 +727,23 @@ public class Conversation extends AppCompatActivity {
         // Release the Whisper model when the activity is destroyed
         mainViewModel.releaseModel();
 
+        PerfLog.record("IntentRouter", intentRouter.summary());
+        if (jankMonitor != null) {
+            jankMonitor.release();
+        }
+
+        // Persist any message still pending and close the history
+        model.setListener(null);
+        model.post(ConversationEvent.Close.INSTANCE);
+        if (history != null) {
+            history.close();
+        }
+
         // Stop any ongoing TTS
-        TtsEngine.INSTANCE.stopMediaPlayer();
+        TtsEngine.INSTANCE.stopPlayback();
         
         // Clean up the adapter resources
-        RecyclerView recyclerView = findViewById(R.id.chat_recycler_view);
-        if (recyclerView != null && recyclerView.getAdapter() != null) {
-            MessageRecyclerViewAdapter adapter = (MessageRecyclerViewAdapter) recyclerView.getAdapter();
+        if (adapter != null) {
             // Stop any streaming TTS
             adapter.stopStreamingTts();
             // Regular cleanup
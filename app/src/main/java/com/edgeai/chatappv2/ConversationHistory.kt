@@ -0,0 +1,118 @@
+package com.edgeai.chatappv2
+
+import android.util.Log
+import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import com.edgeai.chatappv2.MainActivity.Companion.TAG
+import java.io.IOException
+import java.util.Locale
+import java.util.concurrent.Executors
+
+/**
+ * ConversationHistory: Pages the persisted conversation in and out of the ConversationModel's window.
+ * When the user scrolls towards either end of the window, the next page is read from the MessageStore
+ * on a background thread and handed to the model, which applies it if its window still lines up.
+ * Pages far out of view are trimmed again, so memory and load time stay constant however long the
+ * history grows. Called on the main thread.
+ */
+class ConversationHistory(
+    private val store: MessageStore,
+    private val model: ConversationModel,
+    private val recyclerView: RecyclerView,
+) {
+    companion object {
+        private const val SECTION = "ConversationHistory"
+
+        // Start loading the next page when this close to either end of the window
+        private const val PREFETCH_DISTANCE = 10
+    }
+
+    private val io = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "history-io").apply { isDaemon = true }
+    }
+
+    // Latest snapshot applied to the adapter
+    private var snapshot = model.snapshot
+
+    // Snapshot and store index of the last page requested, to avoid reading the same page twice
+    private var requestedFor: ConversationSnapshot? = null
+    private var requestedFrom = -1L
+    private var trimRequestedFor: ConversationSnapshot? = null
+
+    init {
+        recyclerView.addOnScrollListener(object : RecyclerView.OnScrollListener() {
+            override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+                onWindowScrolled()
+            }
+        })
+    }
+
+    /**
+     * onSnapshotApplied: Track the window shown by the adapter
+     */
+    fun onSnapshotApplied(applied: ConversationSnapshot) {
+        snapshot = applied
+        // Visible positions are only valid once the frame has been laid out
+        recyclerView.post { trimIfNeeded() }
+    }
+
+    /**
+     * close: Stop reading pages
+     */
+    fun close() {
+        io.shutdownNow()
+    }
+
+    private fun onWindowScrolled() {
+        val layoutManager = recyclerView.layoutManager as? LinearLayoutManager ?: return
+        val first = layoutManager.findFirstVisibleItemPosition()
+        val last = layoutManager.findLastVisibleItemPosition()
+        if (first == RecyclerView.NO_POSITION || io.isShutdown) return
+
+        val current = snapshot
+        if (first <= PREFETCH_DISTANCE && current.windowStart > 0) {
+            val from = maxOf(0L, current.windowStart - ConversationModel.PAGE_SIZE)
+            loadPage(current, from, (current.windowStart - from).toInt())
+        } else if (last >= current.messages.size - 1 - PREFETCH_DISTANCE && current.windowEnd < current.historySize) {
+            loadPage(current, current.windowEnd, ConversationModel.PAGE_SIZE)
+        }
+    }
+
+    private fun loadPage(current: ConversationSnapshot, from: Long, count: Int) {
+        if (requestedFor === current && requestedFrom == from) return
+        requestedFor = current
+        requestedFrom = from
+
+        io.execute {
+            val start = System.nanoTime()
+            val page = try {
+                store.read(from, count)
+            } catch (e: IOException) {
+                Log.e(TAG, "Failed to read conversation history: ${e.message}")
+                return@execute
+            }
+            PerfLog.record(SECTION, String.format(Locale.ENGLISH, "Read %d messages at %d in %.2f ms",
+                page.size, from, (System.nanoTime() - start) / 1e6))
+            model.post(ConversationEvent.PageLoaded(from, page))
+        }
+    }
+
+    private fun trimIfNeeded() {
+        val current = snapshot
+        val excess = current.messages.size - ConversationModel.MAX_RESIDENT
+        if (excess <= 0 || trimRequestedFor === current) return
+        val layoutManager = recyclerView.layoutManager as? LinearLayoutManager ?: return
+        val first = layoutManager.findFirstVisibleItemPosition()
+        val last = layoutManager.findLastVisibleItemPosition()
+        if (first == RecyclerView.NO_POSITION) return
+
+        // Drop whichever end of the window is far out of view
+        if (first - PREFETCH_DISTANCE > excess) {
+            trimRequestedFor = current
+            model.post(ConversationEvent.Trim(current.windowStart, excess, 0))
+        } else if (last + PREFETCH_DISTANCE < current.messages.size - excess) {
+            trimRequestedFor = current
+            model.post(ConversationEvent.Trim(current.windowStart, 0, excess))
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.edgeai.chatappv2
+
+import android.util.Log
+import com.edgeai.chatappv2.MainActivity.Companion.TAG
+import java.io.IOException
+import java.util.Collections
+import java.util.Locale
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+
+/**
+ * Events processed by the ConversationModel, one at a time and in the order they were posted
+ */
+sealed class ConversationEvent {
+    /** Show the latest page of the history, greeting with welcomeText if there is none */
+    class Open(val welcomeText: String) : ConversationEvent()
+
+    /** Message typed or spoken by the user, transcriptionTimeMs is 0 for typed input */
+    class UserMessage(val text: String, val transcriptionTimeMs: Double) : ConversationEvent()
+
+    /** Complete bot message that did not come from the LLM, e.g. a local intent answer */
+    class BotMessage(val text: String) : ConversationEvent()
+
+    /** The LLM starts answering a prompt sent at startTimeMs */
+    class GenerationStart(val startTimeMs: Long) : ConversationEvent()
+
+    /** Text streamed by the LLM */
+    class TokenBatch(val text: String) : ConversationEvent()
+
+    /** The LLM answer is complete */
+    object GenerationEnd : ConversationEvent()
+
+    /** TTS started speaking a message, null once nothing is playing */
+    class TtsState(val playing: ChatMessage?) : ConversationEvent()
+
+    /** Page of messages read from the MessageStore, starting at store index from */
+    class PageLoaded(val from: Long, val page: List<ChatMessage>) : ConversationEvent()
+
+    /** Drop messages far out of view, ignored if the window moved since windowStart was observed */
+    class Trim(val windowStart: Long, val head: Int, val tail: Int) : ConversationEvent()
+
+    /** Show the message at store index, e.g. a search result */
+    class Reveal(val index: Long) : ConversationEvent()
+
+    /** Persist whatever is pending and close the store */
+    object Close : ConversationEvent()
+}
+
+/**
+ * Changes between two snapshots, in the order they happened. Positions refer to the list right
+ * after the change, the way RecyclerView notifications expect them.
+ */
+sealed class ConversationChange {
+    /** Messages inserted, paged is true for history pages and false for new messages */
+    class Inserted(val position: Int, val messages: List<ChatMessage>, val paged: Boolean) : ConversationChange()
+
+    class Removed(val position: Int, val count: Int) : ConversationChange()
+
+    /** Streamed text appended to a message, characters [from, to) are new */
+    class Appended(val position: Int, val message: ChatMessage, val from: Int, val to: Int) : ConversationChange()
+
+    /** The whole window was replaced */
+    object Reloaded : ConversationChange()
+
+    /**
+     * The message being spoken changed, a position is -1 for none or not resident.
+     * count is the size of the window at the change, the rows all play buttons are on.
+     */
+    class PlayState(val previous: Int, val current: Int, val count: Int) : ConversationChange()
+
+    /** The LLM answer is complete, message is null if no token was produced, position -1 if not resident */
+    class GenerationFinished(val message: ChatMessage?, val position: Int) : ConversationChange()
+
+    /** The message at position was asked for with Reveal and should be scrolled to */
+    class Revealed(val position: Int) : ConversationChange()
+}
+
+/**
+ * ConversationSnapshot: Immutable view of the conversation published by the ConversationModel.
+ * The list is never modified once published and is shared by later snapshots until the structure
+ * changes. Message text only ever grows, so any prefix a reader has seen stays valid.
+ */
+class ConversationSnapshot(
+    val messages: List<ChatMessage>,
+    val windowStart: Long,     // Store index of messages[0]
+    val historySize: Long,     // Messages persisted in the store
+    val streaming: ChatMessage?,
+    val playing: ChatMessage?,
+) {
+    val windowEnd: Long
+        get() = windowStart + messages.size
+
+    /**
+     * @return the most recent bot message in the window, or null if the bot has not spoken yet
+     */
+    fun lastBotMessage(): String? = messages.lastOrNull { !it.isMessageFromUser() }?.message
+}
+
+/**
+ * ConversationModel: Single writer of the conversation.
+ * Events from the UI, the LLM worker and the history pager are processed in order on one thread,
+ * which is also the only thread that reserves and commits messages in the MessageStore. New
+ * messages are added to the SearchIndex on this thread too, while the catch-up indexing of older
+ * history runs on a background thread of the activity, which is why SearchIndex is synchronized.
+ * After each event the model publishes an immutable snapshot and the changes that led to it, so
+ * the UI thread never mutates conversation state and token ingestion takes no main thread time.
+ */
+class ConversationModel(private val store: MessageStore?, private val search: SearchIndex? = null) {
+
+    /**
+     * Listener: Receives every published snapshot, on the model thread
+     */
+    fun interface Listener {
+        fun onSnapshot(snapshot: ConversationSnapshot, changes: List<ConversationChange>)
+    }
+
+    companion object {
+        private const val SECTION = "ConversationModel"
+
+        // Messages read from the store at a time
+        const val PAGE_SIZE = 50
+
+        // Messages kept in the window before pages far out of view are trimmed
+        const val MAX_RESIDENT = 4 * PAGE_SIZE
+    }
+
+    private val loop = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "conversation-model").apply { isDaemon = true }
+    }
+
+    // State below is confined to the model thread
+    private val window = ArrayList<ChatMessage>(MAX_RESIDENT)
+    private var windowStart = 0L
+    private var streaming: ChatMessage? = null
+    private var generationStartMs = 0L
+    private var playing: ChatMessage? = null
+    private var publishedMessages: List<ChatMessage> = emptyList()
+    private var structureChanged = false
+    private val changes = ArrayList<ConversationChange>()
+
+    @Volatile
+    var listener: Listener? = null
+
+    /**
+     * Latest published snapshot, readable from any thread
+     */
+    @Volatile
+    var snapshot = ConversationSnapshot(emptyList(), 0, 0, null, null)
+        private set
+
+    /**
+     * post: Queue an event for the model thread, can be called from any thread
+     */
+    fun post(event: ConversationEvent) {
+        try {
+            loop.execute {
+                try {
+                    handle(event)
+                } catch (e: Exception) {
+                    Log.e(TAG, "Failed to process ${event.javaClass.simpleName}: ${e.message}")
+                }
+                publish()
+            }
+        } catch (e: RejectedExecutionException) {
+            // Closed, the conversation is gone
+        }
+    }
+
+    private fun handle(event: ConversationEvent) {
+        when (event) {
+            is ConversationEvent.Open -> {
+                loadLatest()
+                if (window.isEmpty()) {
+                    add(ChatMessage(event.welcomeText, MessageSender.BOT), true)
+                }
+            }
+            is ConversationEvent.UserMessage -> {
+                val msg = if (event.transcriptionTimeMs > 0) {
+                    ChatMessage(event.text, MessageSender.USER, event.transcriptionTimeMs, true)
+                } else {
+                    ChatMessage(event.text, MessageSender.USER)
+                }
+                add(msg, true)
+            }
+            is ConversationEvent.BotMessage -> add(ChatMessage(event.text, MessageSender.BOT), true)
+            is ConversationEvent.GenerationStart -> {
+                finishGeneration()
+                generationStartMs = event.startTimeMs
+            }
+            is ConversationEvent.TokenBatch -> appendTokens(event.text)
+            ConversationEvent.GenerationEnd -> finishGeneration()
+            is ConversationEvent.TtsState -> {
+                val previous = playing
+                if (previous !== event.playing) {
+                    playing = event.playing
+                    changes.add(ConversationChange.PlayState(positionOf(previous), positionOf(event.playing), window.size))
+                }
+            }
+            is ConversationEvent.PageLoaded -> applyPage(event.from, event.page)
+            is ConversationEvent.Trim -> trim(event)
+            is ConversationEvent.Reveal -> reveal(event.index)
+            ConversationEvent.Close -> {
+                finishGeneration()
+                try {
+                    store?.close()
+                } catch (e: IOException) {
+                    Log.e(TAG, "Failed to close conversation history: ${e.message}")
+                }
+                saveSearchIndex()
+                loop.shutdown()
+            }
+        }
+    }
+
+    private fun appendTokens(text: String) {
+        var msg = streaming
+        if (msg == null) {
+            // First token, the message is persisted once the generation completes
+            val firstTokenTime = System.currentTimeMillis() - generationStartMs
+            msg = ChatMessage("", MessageSender.BOT, firstTokenTime.toDouble())
+            streaming = msg
+            add(msg, false)
+        }
+
+        val from = msg.length
+        msg.appendMessage(text)
+        msg.setMsToLastToken(generationStartMs)
+        changes.add(ConversationChange.Appended(positionOf(msg), msg, from, msg.length))
+    }
+
+    private fun finishGeneration() {
+        val msg = streaming ?: return
+        streaming = null
+        commit(msg)
+        changes.add(ConversationChange.GenerationFinished(msg, positionOf(msg)))
+    }
+
+    private fun add(msg: ChatMessage, complete: Boolean) {
+        ensureAtTail()
+        window.add(msg)
+        structureChanged = true
+        changes.add(ConversationChange.Inserted(window.size - 1, listOf(msg), false))
+
+        if (store != null) {
+            msg.storeIndex = store.reserve()
+            if (complete) {
+                commit(msg)
+            }
+        }
+    }
+
+    private fun commit(msg: ChatMessage) {
+        if (store == null || msg.storeIndex < 0) return
+        try {
+            store.commit(msg.storeIndex, MessageStore.encode(msg))
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to persist message ${msg.storeIndex}: ${e.message}")
+            return
+        }
+        search?.add(msg.storeIndex, msg.message)
+    }
+
+    private fun saveSearchIndex() {
+        val index = search ?: return
+        val start = System.nanoTime()
+        try {
+            val bytes = index.save()
+            if (bytes > 0) {
+                PerfLog.record(SECTION, String.format(Locale.ENGLISH, "Saved search index (%s) as %d bytes in %.2f ms",
+                    index.summary(), bytes, (System.nanoTime() - start) / 1e6))
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to save search index: ${e.message}")
+        }
+    }
+
+    /**
+     * Make sure the window ends with the newest message, jumping back to the latest page
+     * if the user paged far up. Trimmed tails only hold committed messages, so they can be read back.
+     */
+    private fun ensureAtTail() {
+        if (store == null || windowStart + window.size >= store.reservedSize()) return
+        loadLatest()
+    }
+
+    private fun loadLatest() {
+        if (store == null) return
+        val size = store.size()
+        val page = try {
+            store.read(maxOf(0L, size - PAGE_SIZE), PAGE_SIZE)
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to read conversation history: ${e.message}")
+            emptyList()
+        }
+
+        window.clear()
+        window.addAll(page)
+        windowStart = size - page.size
+        structureChanged = true
+        changes.add(ConversationChange.Reloaded)
+    }
+
+    private fun reveal(index: Long) {
+        if (store == null || index < 0 || index >= store.size()) return
+
+        var position = (index - windowStart).toInt()
+        if (index < windowStart || position >= window.size) {
+            // Center a page on the message, the pager loads around it as the user scrolls
+            val from = maxOf(0L, index - PAGE_SIZE / 2)
+            val page = try {
+                store.read(from, PAGE_SIZE)
+            } catch (e: IOException) {
+                Log.e(TAG, "Failed to read conversation history: ${e.message}")
+                return
+            }
+            window.clear()
+            window.addAll(page)
+            windowStart = from
+            structureChanged = true
+            changes.add(ConversationChange.Reloaded)
+            position = (index - from).toInt()
+        }
+        changes.add(ConversationChange.Revealed(position))
+    }
+
+    private fun applyPage(from: Long, page: List<ChatMessage>) {
+        if (page.isEmpty()) return
+        if (from + page.size == windowStart) {
+            window.addAll(0, page)
+            windowStart = from
+            structureChanged = true
+            changes.add(ConversationChange.Inserted(0, page, true))
+        } else if (from == windowStart + window.size) {
+            val position = window.size
+            window.addAll(page)
+            structureChanged = true
+            changes.add(ConversationChange.Inserted(position, page, true))
+        }
+        // Otherwise the window moved while the page was read, drop it
+    }
+
+    private fun trim(event: ConversationEvent.Trim) {
+        if (event.windowStart != windowStart) return
+
+        val head = minOf(event.head, window.size)
+        if (head > 0) {
+            window.subList(0, head).clear()
+            windowStart += head
+            structureChanged = true
+            changes.add(ConversationChange.Removed(0, head))
+        }
+
+        // Only committed messages can be dropped from the tail, they are read back from the store
+        val tail = minOf(event.tail, window.size)
+        if (tail > 0 && streaming == null && store != null && windowStart + window.size <= store.size()) {
+            window.subList(window.size - tail, window.size).clear()
+            structureChanged = true
+            changes.add(ConversationChange.Removed(window.size, tail))
+        }
+    }
+
+    private fun positionOf(msg: ChatMessage?): Int {
+        if (msg == null) return -1
+        // The message of interest is almost always at the end of the window
+        for (i in window.indices.reversed()) {
+            if (window[i] === msg) return i
+        }
+        return -1
+    }
+
+    private fun publish() {
+        if (changes.isEmpty()) return
+        if (structureChanged) {
+            publishedMessages = Collections.unmodifiableList(ArrayList(window))
+            structureChanged = false
+        }
+
+        val published = ConversationSnapshot(publishedMessages, windowStart,
+            store?.size() ?: (windowStart + window.size), streaming, playing)
+        val publishedChanges = ArrayList(changes)
+        changes.clear()
+
+        snapshot = published
+        listener?.onSnapshot(published, publishedChanges)
+    }
+}
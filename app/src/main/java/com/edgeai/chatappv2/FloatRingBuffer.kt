@@ -0,0 +1,71 @@
+package com.edgeai.chatappv2
+
+/**
+ * FloatRingBuffer: Lock-free single-producer/single-consumer ring buffer of audio samples.
+ * The storage is allocated once; the producer only advances the tail and the consumer only
+ * advances the head, and the volatile positions publish the samples between the two threads.
+ * Samples are read in exactly the order they were written.
+ */
+class FloatRingBuffer(minCapacity: Int) {
+
+    // Power of two, so positions map to slots with a mask
+    val capacity = Integer.highestOneBit(maxOf(2, minCapacity) - 1) shl 1
+    private val mask = capacity - 1
+    private val data = FloatArray(capacity)
+
+    // Total samples read and written, only ever increasing
+    @Volatile private var head = 0L
+    @Volatile private var tail = 0L
+
+    /**
+     * Samples waiting to be read
+     */
+    val size: Int
+        get() = (tail - head).toInt()
+
+    /**
+     * Free slots
+     */
+    val free: Int
+        get() = capacity - size
+
+    /**
+     * write: Copy as many samples as fit, producer thread only
+     *
+     * @return number of samples written, 0 if the buffer is full
+     */
+    fun write(src: FloatArray, offset: Int, length: Int): Int {
+        val t = tail
+        val n = minOf(length, capacity - (t - head).toInt())
+        if (n <= 0) return 0
+
+        val index = (t and mask.toLong()).toInt()
+        val first = minOf(n, capacity - index)
+        System.arraycopy(src, offset, data, index, first)
+        if (n > first) {
+            System.arraycopy(src, offset + first, data, 0, n - first)
+        }
+        tail = t + n
+        return n
+    }
+
+    /**
+     * read: Copy up to length samples out, consumer thread only
+     *
+     * @return number of samples read, 0 if the buffer is empty
+     */
+    fun read(dst: FloatArray, offset: Int, length: Int): Int {
+        val h = head
+        val n = minOf(length, (tail - h).toInt())
+        if (n <= 0) return 0
+
+        val index = (h and mask.toLong()).toInt()
+        val first = minOf(n, capacity - index)
+        System.arraycopy(data, index, dst, offset, first)
+        if (n > first) {
+            System.arraycopy(data, 0, dst, offset + first, n - first)
+        }
+        head = h + n
+        return n
+    }
+}
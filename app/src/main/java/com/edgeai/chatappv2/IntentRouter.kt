@@ -0,0 +1,178 @@
+package com.edgeai.chatappv2
+
+import android.content.Context
+import android.os.BatteryManager
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.format.DateTimeFormatter
+import java.time.format.FormatStyle
+import java.util.Locale
+
+/**
+ * Intents that are answered on-device without querying the LLM
+ */
+enum class LocalIntent {
+    TIME,
+    DATE,
+    BATTERY,
+    REPEAT_LAST,
+    STOP_SPEECH,
+}
+
+/**
+ * IntentRouter: Rule based router in front of Genie.
+ * Trivial requests (time, date, battery, repeat, stop) are answered locally in well under
+ * a millisecond, everything else falls through to the LLM.
+ */
+class IntentRouter(context: Context) {
+
+    /**
+     * Resolution: Local answer for a matched intent
+     */
+    class Resolution(val intent: LocalIntent, val reply: String)
+
+    companion object {
+        private const val SECTION = "IntentRouter"
+
+        private const val REPLY_NOTHING_SAID = "I haven't said anything yet."
+        private const val REPLY_STOPPED = "Okay, I've stopped."
+        private const val REPLY_NO_BATTERY = "I can't read the battery level on this device."
+
+        // Replies that never change, kept ready to speak in the phrase bank
+        @JvmField
+        val FIXED_REPLIES = listOf(REPLY_NOTHING_SAID, REPLY_STOPPED, REPLY_NO_BATTERY)
+
+        // Anything longer is a real question, even if it mentions "time" or "battery"
+        private const val MAX_INPUT_CHARS = 64
+
+        private const val PREFIX = "(?:(?:hey|hi|ok|okay|so|um|uh)\\s+)*" +
+                "(?:(?:can|could|would) you\\s+)?" +
+                "(?:(?:please|tell me|let me know)\\s+)*"
+        private const val SUFFIX = "(?:\\s+(?:please|now|right now|today|again))*"
+
+        private fun rule(body: String) = Regex("^$PREFIX(?:$body)$SUFFIX$")
+    }
+
+    private val appContext = context.applicationContext
+
+    private val rules: List<Pair<LocalIntent, Regex>> = listOf(
+        LocalIntent.STOP_SPEECH to rule(
+            "stop(?: talking| speaking| reading| speech| it)?|be quiet|quiet|silence|shut up|that's enough|enough"
+        ),
+        LocalIntent.REPEAT_LAST to rule(
+            "repeat(?: that| it| yourself| the last answer| your last answer| what you said)?|" +
+                    "say (?:that|it)|(?:sorry )?what did you (?:just )?say|come again"
+        ),
+        LocalIntent.TIME to rule(
+            "what(?:'s|s| is)? the (?:current )?time(?: is it)?|what time is it|(?:the )?(?:current )?time"
+        ),
+        LocalIntent.DATE to rule(
+            "what(?:'s|s| is)? (?:the |today's |todays )?date|what day is (?:it|today)|" +
+                    "(?:today's |todays |the )?date|what(?:'s|s| is) today"
+        ),
+        LocalIntent.BATTERY to rule(
+            "what(?:'s|s| is)? (?:my |the )?battery(?: level| percentage| status)?|" +
+                    "how much battery(?: do i have| is left| left)?|(?:my |the )?battery(?: level| percentage| status)?"
+        ),
+    )
+
+    // Per-intent statistics, indexed by LocalIntent.ordinal
+    private val hits = IntArray(LocalIntent.values().size)
+    private val localNanos = LongArray(LocalIntent.values().size)
+    private var llmTurns = 0
+    private var llmTurnMsTotal = 0L
+
+    /**
+     * route: Try to answer the user input locally
+     *
+     * @param userInput raw user input (typed or transcribed)
+     * @param lastAnswer last message spoken by the bot, used for REPEAT_LAST
+     * @return resolution if the input matches a known intent, null to fall through to the LLM
+     */
+    fun route(userInput: String, lastAnswer: String?): Resolution? {
+        val start = System.nanoTime()
+        val normalized = normalize(userInput)
+        if (normalized.isEmpty() || normalized.length > MAX_INPUT_CHARS) {
+            return null
+        }
+
+        val intent = rules.firstOrNull { it.second.matches(normalized) }?.first ?: return null
+        val reply = when (intent) {
+            LocalIntent.TIME -> "It's " +
+                    LocalTime.now().format(DateTimeFormatter.ofLocalizedTime(FormatStyle.SHORT)) + "."
+            LocalIntent.DATE -> "Today is " +
+                    LocalDate.now().format(DateTimeFormatter.ofLocalizedDate(FormatStyle.FULL)) + "."
+            LocalIntent.BATTERY -> batteryReply()
+            LocalIntent.REPEAT_LAST -> lastAnswer?.takeIf { it.isNotBlank() } ?: REPLY_NOTHING_SAID
+            LocalIntent.STOP_SPEECH -> REPLY_STOPPED
+        }
+
+        val elapsedNanos = System.nanoTime() - start
+        synchronized(this) {
+            hits[intent.ordinal]++
+            localNanos[intent.ordinal] += elapsedNanos
+        }
+        PerfLog.record(SECTION, String.format(Locale.ENGLISH, "%s answered locally in %.3f ms", intent.name, elapsedNanos / 1e6))
+        PerfLog.record(SECTION, summary())
+        return Resolution(intent, reply)
+    }
+
+    /**
+     * recordLlmTurn: Record how long a full Genie turn took, used to estimate latency saved
+     *
+     * @param elapsedMs time from sending the prompt to the last token
+     */
+    @Synchronized
+    fun recordLlmTurn(elapsedMs: Long) {
+        llmTurns++
+        llmTurnMsTotal += elapsedMs
+    }
+
+    /**
+     * summary: Per-intent hit counts and estimated latency saved compared to the average LLM turn
+     */
+    @Synchronized
+    fun summary(): String {
+        val avgLlmMs = if (llmTurns > 0) llmTurnMsTotal.toDouble() / llmTurns else Double.NaN
+        val builder = StringBuilder("hits:")
+        var totalSavedMs = 0.0
+        for (intent in LocalIntent.values()) {
+            val count = hits[intent.ordinal]
+            if (count == 0) continue
+            val avgLocalMs = localNanos[intent.ordinal] / 1e6 / count
+            builder.append(String.format(Locale.ENGLISH, " %s=%d (%.3f ms)", intent.name, count, avgLocalMs))
+            if (!avgLlmMs.isNaN()) {
+                totalSavedMs += count * (avgLlmMs - avgLocalMs)
+            }
+        }
+        if (avgLlmMs.isNaN()) {
+            builder.append(", latency saved: n/a (no LLM turn measured yet)")
+        } else {
+            builder.append(String.format(Locale.ENGLISH, ", latency saved: %.1f s (avg LLM turn %.0f ms over %d turns)",
+                totalSavedMs / 1000.0, avgLlmMs, llmTurns))
+        }
+        return builder.toString()
+    }
+
+    private fun batteryReply(): String {
+        val batteryManager = appContext.getSystemService(BatteryManager::class.java)
+            ?: return REPLY_NO_BATTERY
+        val level = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY)
+        if (level < 0) {
+            return REPLY_NO_BATTERY
+        }
+        return if (batteryManager.isCharging) {
+            "The battery is at $level% and charging."
+        } else {
+            "The battery is at $level%."
+        }
+    }
+
+    private fun normalize(text: String): String {
+        return text.lowercase(Locale.ROOT)
+            .replace('’', '\'')
+            .replace(Regex("[^a-z0-9' ]+"), " ")
+            .replace(Regex("\\s+"), " ")
+            .trim()
+    }
+}
@@ -0,0 +1,149 @@
+package com.edgeai.chatappv2
+
+import android.os.Handler
+import android.os.HandlerThread
+import android.view.FrameMetrics
+import android.view.Window
+import java.util.Locale
+
+/**
+ * JankMonitor: Captures the frame metrics of the chat window for every conversation turn.
+ * A turn starts when a prompt is sent and lasts until the next one, so speech that outlives the
+ * generation is still covered. Every frame is tagged with whether tokens were streaming and
+ * whether TTS was speaking when it was drawn, and the turn is summarized into the performance log
+ * together with the token rate, so a UI change can be judged by the frames it actually drops.
+ */
+class JankMonitor(
+    private val window: Window,
+    private val ttsActive: () -> Boolean
+) : Window.OnFrameMetricsAvailableListener {
+
+    companion object {
+        private const val SECTION = "Jank"
+    }
+
+    /**
+     * TurnStats: Frame statistics of a turn, frame-metrics thread only
+     */
+    private class TurnStats(val turn: Int) {
+        var durations = LongArray(256)
+        var frames = 0
+        var janky = 0
+        var generatingFrames = 0
+        var generatingJanky = 0
+        var ttsFrames = 0
+        var ttsJanky = 0
+        var unreported = 0
+
+        fun add(duration: Long, isJanky: Boolean, generating: Boolean, speaking: Boolean) {
+            if (frames == durations.size) {
+                durations = durations.copyOf(frames * 2)
+            }
+            durations[frames++] = duration
+            if (isJanky) janky++
+            if (generating) {
+                generatingFrames++
+                if (isJanky) generatingJanky++
+            }
+            if (speaking) {
+                ttsFrames++
+                if (isJanky) ttsJanky++
+            }
+        }
+
+        fun percentileMs(sorted: LongArray, p: Int): Double {
+            if (frames == 0) return 0.0
+            return sorted[minOf(frames - 1, frames * p / 100)] / 1e6
+        }
+    }
+
+    private val thread = HandlerThread("frame-metrics").apply { start() }
+    private val handler = Handler(thread.looper)
+
+    // Main thread only
+    private var turn = 0
+    private var listening = false
+
+    // Frame-metrics thread only
+    private var stats: TurnStats? = null
+
+    @Volatile private var generating = false
+    @Volatile private var tokens = 0
+    @Volatile private var tokenSeconds = 0.0
+
+    /**
+     * beginTurn: Summarize the previous turn and start capturing frames for a new one,
+     * called on the main thread when a prompt is sent
+     */
+    fun beginTurn() {
+        endTurn()
+        val current = TurnStats(++turn)
+        tokens = 0
+        tokenSeconds = 0.0
+        generating = true
+        handler.post { stats = current }
+        window.addOnFrameMetricsAvailableListener(this, handler)
+        listening = true
+    }
+
+    /**
+     * onGenerationFinished: The last token of the turn has been shown
+     */
+    fun onGenerationFinished() {
+        generating = false
+    }
+
+    /**
+     * recordTokens: Report the LLM throughput of the turn, can be called from any thread
+     */
+    fun recordTokens(count: Int, seconds: Double) {
+        tokens = count
+        tokenSeconds = seconds
+    }
+
+    /**
+     * release: Summarize the current turn and stop the frame-metrics thread
+     */
+    fun release() {
+        endTurn()
+        thread.quitSafely()
+    }
+
+    private fun endTurn() {
+        if (!listening) return
+        listening = false
+        generating = false
+        window.removeOnFrameMetricsAvailableListener(this)
+
+        // Queued after every frame delivered so far
+        val tokenCount = tokens
+        val seconds = tokenSeconds
+        handler.post {
+            stats?.let { report(it, tokenCount, seconds) }
+            stats = null
+        }
+    }
+
+    override fun onFrameMetricsAvailable(window: Window, frameMetrics: FrameMetrics, dropCountSinceLastInvocation: Int) {
+        val current = stats ?: return
+        current.unreported += dropCountSinceLastInvocation
+        if (frameMetrics.getMetric(FrameMetrics.FIRST_DRAW_FRAME) == 1L) return
+
+        val duration = frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION)
+        val isJanky = duration > frameMetrics.getMetric(FrameMetrics.DEADLINE)
+        current.add(duration, isJanky, generating, ttsActive())
+    }
+
+    private fun report(stats: TurnStats, tokenCount: Int, seconds: Double) {
+        if (stats.frames == 0) return
+        val sorted = stats.durations.copyOf(stats.frames).apply { sort() }
+        PerfLog.record(SECTION, String.format(Locale.ENGLISH,
+            "Turn %d: %d frames, %d janky (%.1f%%), p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms; " +
+                "generating %d/%d janky at %.1f tokens/s; TTS %d/%d janky; %d frames unreported",
+            stats.turn, stats.frames, stats.janky, 100.0 * stats.janky / stats.frames,
+            stats.percentileMs(sorted, 50), stats.percentileMs(sorted, 90), stats.percentileMs(sorted, 99),
+            sorted[stats.frames - 1] / 1e6,
+            stats.generatingJanky, stats.generatingFrames, if (seconds > 0) tokenCount / seconds else 0.0,
+            stats.ttsJanky, stats.ttsFrames, stats.unreported))
+    }
+}
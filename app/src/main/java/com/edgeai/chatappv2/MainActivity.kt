@@ -21,6 +21,14 @@ import java.util.*
 class MainActivity : AppCompatActivity() {
     companion object {
         const val TAG = "ChatApp V2"
+
+        // Optional launch extra to select the inference thread placement policy, e.g.
+        // adb shell am start -n com.edgeai.chatappv2/.MainActivity --es placement_policy BIG_CORES
+        const val EXTRA_PLACEMENT_POLICY = "placement_policy"
+
+        // Optional launch extra to run the TTS benchmark, "quick" or "full", e.g.
+        // adb shell am start -n com.edgeai.chatappv2/.MainActivity --es tts_benchmark full
+        const val EXTRA_TTS_BENCHMARK = "tts_benchmark"
     }
 
     private val ttsViewModel: TtsViewModel by viewModels()
@@ -171,6 +179,12 @@ class MainActivity : AppCompatActivity() {
         // Set ADSP_LIBRARY_PATH as early as possible
         setAdspLibraryPath()
 
+        // Persist performance measurements to files/perf.log
+        PerfLog.init(this)
+
+        // Select where inference threads run before any model is loaded
+        setupThreadPlacement()
+
         // Hide the action bar
         supportActionBar?.hide()
 
@@ -184,6 +198,13 @@ class MainActivity : AppCompatActivity() {
         Log.i(TAG, "Start to initialize TTS")
         TtsEngine.createTts(this, BuildConfig.SOCKET_ID)
         Log.i(TAG, "TTS Engine initialized")
+        intent?.getStringExtra(EXTRA_TTS_BENCHMARK)?.let { sweep ->
+            TtsEngine.runBenchmark(this, if (sweep.equals("full", ignoreCase = true)) {
+                TtsBenchmark.Sweep.FULL
+            } else {
+                TtsBenchmark.Sweep.QUICK
+            })
+        }
 
         try {
             // Get SoC model from build properties
@@ -283,6 +304,22 @@ class MainActivity : AppCompatActivity() {
         }
     }
 
+    /**
+     * Apply the saved thread placement policy, or the one passed as launch extra
+     */
+    private fun setupThreadPlacement() {
+        val preferenceHelper = PreferenceHelper(this)
+        intent?.getStringExtra(EXTRA_PLACEMENT_POLICY)?.let { name ->
+            val requested = PlacementPolicy.values().firstOrNull { it.name.equals(name, ignoreCase = true) }
+            if (requested != null) {
+                preferenceHelper.setPlacementPolicy(requested)
+            } else {
+                Log.w(TAG, "Unknown placement policy: $name")
+            }
+        }
+        ThreadPlacement.policy = preferenceHelper.getPlacementPolicy()
+    }
+
     /**
      * Set ADSP_LIBRARY_PATH environment variable to the native library directory
      * This is critical for components that need to find native libraries at runtime
@@ -195,7 +195,10 @@ class MainViewModel : ViewModel() {
                     _loadingProgress.postValue("Loading model components ($i/5)...")
                 }
 
-                whisperKit = WhisperKitNative(modelDestFolder.absolutePath, waveFile!!.path, ".", nativeLibsDir!!, 4)
+                // Whisper worker threads inherit the ASR thread placement
+                whisperKit = ThreadPlacement.withPlacement(InferenceRole.ASR) {
+                    WhisperKitNative(modelDestFolder.absolutePath, waveFile!!.path, ".", nativeLibsDir!!, 4)
+                }
                 _loadingProgress.postValue("Finalizing model setup...")
                 delay(300)
                 
@@ -263,13 +266,19 @@ class MainViewModel : ViewModel() {
             val time = measureTimeMillis {
                 try {
                     Log.d("WhisperKit", "Starting transcription of file: ${waveFile!!.absolutePath}")
-                    transcriptOutput = whisperKit!!.transcribe(waveFile!!.absolutePath)
+                    transcriptOutput = ThreadPlacement.withPlacement(InferenceRole.ASR) {
+                        whisperKit!!.transcribe(waveFile!!.absolutePath)
+                    }
                 } catch (e: Exception) {
                     Log.e("WhisperKit", "Error during transcription", e)
                     transcriptOutput = ""
                 }
             }
 
+            // Recorder writes 16 kHz mono 16-bit PCM behind a 44 byte WAV header
+            val audioSeconds = (waveFile!!.length() - 44).coerceAtLeast(0) / (16000.0 * 2)
+            ThreadPlacement.recordRtf(InferenceRole.ASR, time / 1000.0, audioSeconds)
+
             withContext(Dispatchers.Main) {
                 _transcriptionTime.value = time
                 _transcriptionResult.value = transcriptOutput
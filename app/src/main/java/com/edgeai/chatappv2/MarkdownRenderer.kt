@@ -0,0 +1,231 @@
+package com.edgeai.chatappv2
+
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Typeface
+import android.text.SpannableString
+import android.text.Spannable
+import android.text.Spanned
+import android.text.style.BackgroundColorSpan
+import android.text.style.RelativeSizeSpan
+import android.text.style.ReplacementSpan
+import android.text.style.StyleSpan
+import android.text.style.TypefaceSpan
+
+/**
+ * MarkdownRenderer: Styles the markdown of a bot message as it streams in.
+ * Lines are styled once their newline arrives and their spans are never touched again; only the
+ * trailing, still growing line is re-styled on every append, so the cost per token is bounded by
+ * the length of one line however long the message gets. Markers are hidden with zero width spans
+ * instead of being removed, so offsets in the styled text stay those of the message.
+ *
+ * Supported: fenced code blocks, headings, bullet lists, bold, italic and inline code.
+ */
+class MarkdownRenderer {
+
+    companion object {
+        private const val CODE_BACKGROUND = 0x1F000000
+        private val HEADING_SIZES = floatArrayOf(1.5f, 1.3f, 1.15f, 1.05f, 1.0f, 1.0f)
+
+        /**
+         * render: Style a complete message in one pass
+         */
+        @JvmStatic
+        fun render(text: CharSequence): Spannable {
+            val styled = SpannableString(text)
+            MarkdownRenderer().apply {
+                append(styled)
+                finish(styled)
+            }
+            return styled
+        }
+    }
+
+    // Start of the first line whose spans are not final yet
+    private var lineStart = 0
+    // Characters already searched for a newline
+    private var scanned = 0
+    private var inCodeBlock = false
+    // Spans of the trailing line, replaced on every append
+    private val trailingSpans = ArrayList<Any>()
+
+    /**
+     * append: Style the text appended since the previous call
+     *
+     * @param text the styled text, it must only ever grow at the end
+     */
+    fun append(text: Spannable) {
+        clearTrailing(text)
+        val end = text.length
+        var i = scanned
+        while (i < end) {
+            if (text[i] == '\n') {
+                styleLine(text, lineStart, i, false)
+                lineStart = i + 1
+            }
+            i++
+        }
+        scanned = end
+
+        if (lineStart < end) {
+            styleLine(text, lineStart, end, true)
+        }
+    }
+
+    /**
+     * finish: Style the trailing line for good once the message is complete
+     */
+    fun finish(text: Spannable) {
+        clearTrailing(text)
+        if (lineStart < text.length) {
+            styleLine(text, lineStart, text.length, false)
+        }
+        lineStart = text.length
+        scanned = text.length
+    }
+
+    private fun clearTrailing(text: Spannable) {
+        for (span in trailingSpans) {
+            text.removeSpan(span)
+        }
+        trailingSpans.clear()
+    }
+
+    /**
+     * Style the line [start, end), a trailing line is styled provisionally and does not change
+     * the parser state
+     */
+    private fun styleLine(text: Spannable, start: Int, end: Int, trailing: Boolean) {
+        var content = start
+        while (content < end && content - start < 4 && text[content] == ' ') {
+            content++
+        }
+
+        if (startsWith(text, content, end, "```")) {
+            // Fence lines, with their language tag, are not shown
+            hide(text, start, end, trailing)
+            if (!trailing) {
+                inCodeBlock = !inCodeBlock
+            }
+            return
+        }
+        if (inCodeBlock) {
+            if (end > start) {
+                setSpan(text, TypefaceSpan("monospace"), start, end, trailing)
+                setSpan(text, BackgroundColorSpan(CODE_BACKGROUND), start, end, trailing)
+            }
+            return
+        }
+
+        var level = 0
+        while (content + level < end && level < 6 && text[content + level] == '#') {
+            level++
+        }
+        if (level > 0 && content + level < end && text[content + level] == ' ') {
+            hide(text, start, content + level + 1, trailing)
+            setSpan(text, StyleSpan(Typeface.BOLD), content + level + 1, end, trailing)
+            setSpan(text, RelativeSizeSpan(HEADING_SIZES[level - 1]), content + level + 1, end, trailing)
+            styleInline(text, content + level + 1, end, trailing)
+            return
+        }
+
+        if (content + 1 < end && text[content + 1] == ' ' &&
+            (text[content] == '-' || text[content] == '*' || text[content] == '+')) {
+            setSpan(text, MarkerSpan("• "), content, content + 2, trailing)
+            styleInline(text, content + 2, end, trailing)
+            return
+        }
+
+        styleInline(text, content, end, trailing)
+    }
+
+    private fun styleInline(text: Spannable, start: Int, end: Int, trailing: Boolean) {
+        var i = start
+        while (i < end) {
+            val c = text[i]
+            if (c == '`') {
+                val close = indexOf(text, "`", i + 1, end)
+                if (close > i + 1) {
+                    hide(text, i, i + 1, trailing)
+                    hide(text, close, close + 1, trailing)
+                    setSpan(text, TypefaceSpan("monospace"), i + 1, close, trailing)
+                    setSpan(text, BackgroundColorSpan(CODE_BACKGROUND), i + 1, close, trailing)
+                    i = close + 1
+                    continue
+                }
+            } else if (c == '*' && i + 1 < end && text[i + 1] == '*') {
+                val close = indexOf(text, "**", i + 2, end)
+                if (close > i + 2) {
+                    hide(text, i, i + 2, trailing)
+                    hide(text, close, close + 2, trailing)
+                    setSpan(text, StyleSpan(Typeface.BOLD), i + 2, close, trailing)
+                    styleInline(text, i + 2, close, trailing)
+                    i = close + 2
+                    continue
+                }
+            } else if ((c == '*' || c == '_') && i + 1 < end && text[i + 1] != ' ' &&
+                (i == start || !text[i - 1].isLetterOrDigit())) {
+                // Word internal markers, as in snake_case, are not emphasis
+                val close = indexOf(text, c.toString(), i + 1, end)
+                if (close > i + 1 && text[close - 1] != ' ') {
+                    hide(text, i, i + 1, trailing)
+                    hide(text, close, close + 1, trailing)
+                    setSpan(text, StyleSpan(Typeface.ITALIC), i + 1, close, trailing)
+                    i = close + 1
+                    continue
+                }
+            }
+            i++
+        }
+    }
+
+    private fun hide(text: Spannable, start: Int, end: Int, trailing: Boolean) {
+        if (end > start) {
+            setSpan(text, MarkerSpan(""), start, end, trailing)
+        }
+    }
+
+    private fun setSpan(text: Spannable, span: Any, start: Int, end: Int, trailing: Boolean) {
+        // Exclusive, so text appended later never extends a finished span
+        text.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE)
+        if (trailing) {
+            trailingSpans.add(span)
+        }
+    }
+
+    private fun startsWith(text: CharSequence, start: Int, end: Int, prefix: String): Boolean {
+        if (end - start < prefix.length) return false
+        for (i in prefix.indices) {
+            if (text[start + i] != prefix[i]) return false
+        }
+        return true
+    }
+
+    private fun indexOf(text: CharSequence, target: String, from: Int, end: Int): Int {
+        var i = from
+        while (i + target.length <= end) {
+            if (startsWith(text, i, end, target)) return i
+            i++
+        }
+        return -1
+    }
+
+    /**
+     * MarkerSpan: Draws replacement text instead of a markdown marker, nothing to hide it
+     */
+    private class MarkerSpan(private val replacement: String) : ReplacementSpan() {
+        override fun getSize(paint: Paint, text: CharSequence?, start: Int, end: Int,
+                             fm: Paint.FontMetricsInt?): Int {
+            if (replacement.isEmpty()) return 0
+            fm?.let { paint.getFontMetricsInt(it) }
+            return paint.measureText(replacement).toInt()
+        }
+
+        override fun draw(canvas: Canvas, text: CharSequence?, start: Int, end: Int, x: Float,
+                          top: Int, y: Int, bottom: Int, paint: Paint) {
+            if (replacement.isNotEmpty()) {
+                canvas.drawText(replacement, x, y.toFloat(), paint)
+            }
+        }
+    }
+}
@@ -6,11 +6,11 @@ import android.media.AudioAttributes
 import android.media.AudioFocusRequest
 import android.media.AudioManager
 import android.os.Build
+import android.text.PrecomputedText
 import android.util.Log
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
-import android.widget.LinearLayout
 import android.widget.PopupMenu
 import android.widget.TextView
 import android.widget.Toast
@@ -20,6 +20,7 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import java.util.Locale
+import java.util.concurrent.atomic.AtomicInteger
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
@@ -29,11 +30,37 @@ import kotlinx.coroutines.SupervisorJob
 
 class MessageRecyclerViewAdapter(
     private val context: Context,
-    private val messages: ArrayList<ChatMessage>
+    private val model: ConversationModel
 ) : RecyclerView.Adapter<MessageRecyclerViewAdapter.MyViewHolder>() {
 
-    // Track which message is currently being spoken
-    private var currentlyPlayingPosition: Int = -1
+    companion object {
+        // Payload for a bot message that only grew at the end
+        private val PAYLOAD_APPEND = Any()
+
+        // Payload for a change of the TTS play state, only the play button is rebound
+        private val PAYLOAD_PLAY_STATE = Any()
+
+        // Payload for the end of a streamed answer, its last line is styled for good
+        private val PAYLOAD_FINISHED = Any()
+
+        // User and bot rows are inflated from their own lean layouts
+        private const val VIEW_TYPE_USER = 0
+        private const val VIEW_TYPE_BOT = 1
+
+        // Recycled rows kept per view type, a screen of short messages plus the rows scrolled past
+        private const val MAX_RECYCLED_ROWS = 12
+
+        // Rows kept bound just out of view, so scrolling back by a little does not rebind
+        private const val ITEM_VIEW_CACHE_SIZE = 4
+
+        private const val SECTION = "ChatRows"
+    }
+
+    // Latest conversation snapshot applied with submit(), the adapter never mutates it
+    @Volatile
+    private var snapshot = model.snapshot
+    private val messages: List<ChatMessage>
+        get() = snapshot.messages
     
     // Track the current TTS job to ensure we don't start multiple TTS operations
     private var currentTtsJob: Job? = null
@@ -42,10 +69,24 @@ class MessageRecyclerViewAdapter(
     private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
 
     // Variables to support streaming TTS during response generation
-    private var streamingTtsBuffer = StringBuilder()
+    // Sentences of the streamed answer, segmented as the text arrives and spoken in order
+    private var streamingSentences = Channel<SpokenChunk>(Channel.UNLIMITED)
+    private val segmenter = SentenceSegmenter { sentence, words ->
+        chunking.onChunk(chunkWordLimit)
+        pendingChunks.incrementAndGet()
+        streamingSentences.trySend(SpokenChunk(sentence, words))
+    }
+    // Chunks are cut short while little audio is queued, the limit is set before every append
+    private val chunking = ChunkController()
+    private val pendingChunks = AtomicInteger()
+    private var chunkWordLimit = Int.MAX_VALUE
+    @Volatile
     private var isStreamingTts = false
     private var streamingSpeechJob: Job? = null
 
+    // Real-time audio session, feeds the AudioTrack from its own thread
+    private var audioWriter: AudioWriter? = null
+
     // Implement these variables inside the class
     private val audioManager by lazy { 
         context.getSystemService(Context.AUDIO_SERVICE) as AudioManager 
@@ -53,107 +94,280 @@ class MessageRecyclerViewAdapter(
     private var audioFocusRequest: AudioFocusRequest? = null
     private var audioFocusGranted = false
 
+    // Text layout measured off the main thread for finished messages
+    private val textCache = PrecomputedTextCache(style = ::styleText)
+    private var userTextParams: PrecomputedText.Params? = null
+    private var botTextParams: PrecomputedText.Params? = null
+
+    // Row inflation statistics per view type, main thread only
+    private val rowsCreated = IntArray(2)
+    private val rowInflateNanos = LongArray(2)
+    private val rowViews = IntArray(2)
+    private var rowBinds = 0
+
+    override fun onAttachedToRecyclerView(recyclerView: RecyclerView) {
+        super.onAttachedToRecyclerView(recyclerView)
+        recyclerView.setItemViewCacheSize(ITEM_VIEW_CACHE_SIZE)
+        recyclerView.recycledViewPool.setMaxRecycledViews(VIEW_TYPE_USER, MAX_RECYCLED_ROWS)
+        recyclerView.recycledViewPool.setMaxRecycledViews(VIEW_TYPE_BOT, MAX_RECYCLED_ROWS)
+    }
+
+    override fun getItemViewType(position: Int): Int {
+        return if (messages[position].isMessageFromUser()) VIEW_TYPE_USER else VIEW_TYPE_BOT
+    }
+
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): MyViewHolder {
-        val inflater = LayoutInflater.from(context)
-        val view = inflater.inflate(R.layout.chat_row, parent, false)
-        return MyViewHolder(view)
+        val start = System.nanoTime()
+        val layout = if (viewType == VIEW_TYPE_USER) R.layout.chat_row_user else R.layout.chat_row_bot
+        val view = LayoutInflater.from(context).inflate(layout, parent, false)
+        val holder = MyViewHolder(view)
+        rowInflateNanos[viewType] += System.nanoTime() - start
+        if (rowsCreated[viewType]++ == 0) {
+            rowViews[viewType] = countViews(view)
+        }
+
+        if (viewType == VIEW_TYPE_USER && userTextParams == null) {
+            // All rows of a type share the same text style, so the first holder defines the metrics
+            userTextParams = holder.mMessage.textMetricsParams
+            messages.forEach { if (it.isMessageFromUser()) prefetchText(it) }
+        } else if (viewType == VIEW_TYPE_BOT && botTextParams == null) {
+            botTextParams = holder.mMessage.textMetricsParams
+            messages.forEach { if (!it.isMessageFromUser()) prefetchText(it) }
+        }
+        return holder
+    }
+
+    private fun countViews(view: View): Int {
+        if (view !is ViewGroup) return 1
+        var count = 1
+        for (i in 0 until view.childCount) {
+            count += countViews(view.getChildAt(i))
+        }
+        return count
+    }
+
+    /**
+     * rowSummary: Rows inflated per view type against the messages bound, with the average
+     * inflation time and the views held by every row
+     */
+    fun rowSummary(): String {
+        return String.format(Locale.ENGLISH,
+            "%d binds over %d messages: %d user rows (%.3f ms avg inflate, %d views each), " +
+                "%d bot rows (%.3f ms avg inflate, %d views each)",
+            rowBinds, snapshot.historySize,
+            rowsCreated[VIEW_TYPE_USER], averageInflateMs(VIEW_TYPE_USER), rowViews[VIEW_TYPE_USER],
+            rowsCreated[VIEW_TYPE_BOT], averageInflateMs(VIEW_TYPE_BOT), rowViews[VIEW_TYPE_BOT])
+    }
+
+    private fun averageInflateMs(viewType: Int): Double {
+        val created = rowsCreated[viewType]
+        return if (created > 0) rowInflateNanos[viewType] / 1e6 / created else 0.0
+    }
+
+    override fun onBindViewHolder(holder: MyViewHolder, position: Int, payloads: MutableList<Any>) {
+        val msg = messages[position]
+        if (payloads.isEmpty() || holder.boundMessage !== msg ||
+            payloads.any { it !== PAYLOAD_APPEND && it !== PAYLOAD_PLAY_STATE && it !== PAYLOAD_FINISHED }) {
+            onBindViewHolder(holder, position)
+            return
+        }
+
+        if (payloads.contains(PAYLOAD_APPEND)) {
+            // Only append the characters streamed since the last bind
+            val length = msg.length
+            if (length > holder.boundLength) {
+                holder.mMessage.append(msg.text, holder.boundLength, length)
+                holder.boundLength = length
+                // Only the trailing line is styled again
+                holder.markdown?.append(holder.mMessage.editableText)
+            }
+            bindTokenTiming(holder, msg)
+        }
+        if (payloads.contains(PAYLOAD_FINISHED)) {
+            // The provisional spans of the trailing line are replaced, an open fence line is toggled
+            holder.markdown?.finish(holder.mMessage.editableText)
+            holder.markdown = null
+        }
+        if (payloads.contains(PAYLOAD_PLAY_STATE)) {
+            bindPlayState(holder, msg)
+        }
     }
 
     override fun onBindViewHolder(holder: MyViewHolder, position: Int) {
         val msg = messages[position]
-        if (msg.isMessageFromUser()) {
-            holder.mUserMessage.text = msg.message
-            holder.mLeftChatLayout.visibility = View.GONE
-            holder.mRightChatLayout.visibility = View.VISIBLE
+        holder.boundMessage = msg
+        holder.boundLength = msg.length
+        rowBinds++
+        bindMessageText(holder, msg)
 
+        if (msg.isMessageFromUser()) {
             // Show transcription time for voice input messages
             if (msg.isFromVoiceInput() && msg.transcriptionTimeSeconds > 0) {
-                holder.mTranscriptionTimingView.visibility = View.VISIBLE
+                holder.mTimingView.visibility = View.VISIBLE
                 val timingText = String.format(Locale.ENGLISH, "Transcribed in %.2fs", msg.transcriptionTimeSeconds)
-                holder.mTranscriptionTimingView.text = timingText
+                holder.mTimingView.text = timingText
             } else {
-                holder.mTranscriptionTimingView.visibility = View.GONE
+                holder.mTimingView.visibility = View.GONE
             }
+        } else {
+            bindTokenTiming(holder, msg)
+        }
+        bindPlayState(holder, msg)
 
-            holder.mTokenTimingView.visibility = View.GONE
-            
-            // Show play button for user messages if no message is currently playing
-            // or if this is the currently playing message
-            if (currentlyPlayingPosition == -1 || currentlyPlayingPosition == position) {
-                holder.mUserTtsFab.visibility = View.VISIBLE
-                // Set the appropriate icon based on play status
-                if (currentlyPlayingPosition == position) {
-                    holder.mUserTtsFab.setImageResource(R.drawable.ic_stop)
-                } else {
-                    holder.mUserTtsFab.setImageResource(R.drawable.ic_play_arrow)
+        // Set up the TTS FAB click listener
+        setupTtsFabListener(holder.mTtsFab, holder)
+    }
+    
+    /**
+     * Apply a conversation snapshot and notify the changes that led to it
+     * @param newSnapshot snapshot published by the ConversationModel
+     * @param changes changes since the previously applied snapshot, in order
+     */
+    fun submit(newSnapshot: ConversationSnapshot, changes: List<ConversationChange>) {
+        snapshot = newSnapshot
+
+        // Consecutive appends to the same message need a single rebind
+        var lastAppended: ChatMessage? = null
+        for (change in changes) {
+            if (change !is ConversationChange.Appended) {
+                lastAppended = null
+            }
+            when (change) {
+                is ConversationChange.Inserted -> {
+                    notifyItemRangeInserted(change.position, change.messages.size)
+                    // Measure the text of new and paged in messages before they are bound
+                    change.messages.forEach { prefetchText(it) }
                 }
-            } else {
-                holder.mUserTtsFab.visibility = View.GONE
+                is ConversationChange.Removed -> notifyItemRangeRemoved(change.position, change.count)
+                is ConversationChange.Appended -> {
+                    if (change.message !== lastAppended && change.position >= 0) {
+                        notifyItemChanged(change.position, PAYLOAD_APPEND)
+                        lastAppended = change.message
+                    }
+                }
+                ConversationChange.Reloaded -> notifyDataSetChanged()
+                is ConversationChange.PlayState -> {
+                    if (change.previous == -1 || change.current == -1) {
+                        // Every other play button is hidden or shown again, on the rows of the window at
+                        // that point of the batch, not of the final snapshot
+                        notifyItemRangeChanged(0, change.count, PAYLOAD_PLAY_STATE)
+                    } else {
+                        notifyItemChanged(change.previous, PAYLOAD_PLAY_STATE)
+                        notifyItemChanged(change.current, PAYLOAD_PLAY_STATE)
+                    }
+                }
+                is ConversationChange.GenerationFinished -> {
+                    // The row on screen keeps its text and finishes its markdown,
+                    // the next full bind of the answer uses the precomputed layout
+                    if (change.position >= 0) {
+                        notifyItemChanged(change.position, PAYLOAD_FINISHED)
+                    }
+                    change.message?.let { prefetchText(it) }
+                }
+                // Scrolling is left to the StreamingRenderer
+                is ConversationChange.Revealed -> {}
             }
-            
-            holder.mBotTtsFab.visibility = View.GONE
-            
-            // Set up user message TTS FAB click listener
-            setupTtsFabListener(holder.mUserTtsFab, msg, position)
-        } else {
-            holder.mBotMessage.text = msg.message
-            holder.mLeftChatLayout.visibility = View.VISIBLE
-            holder.mRightChatLayout.visibility = View.GONE
-            holder.mTranscriptionTimingView.visibility = View.GONE
-
-            // Show timing information for messages that have started generating
-            if (msg.timeToFirstTokenSeconds > 0) {
-                holder.mTokenTimingView.visibility = View.VISIBLE
-                val timingText = formatTimingText(msg)
-                holder.mTokenTimingView.text = timingText
-
-                // Style the timing view differently if message is still generating
-                holder.mTokenTimingView.alpha = if (msg.totalTimeSeconds <= 0) 0.7f else 1.0f
-            } else {
-                holder.mTokenTimingView.visibility = View.GONE
+        }
+    }
+
+    private fun bindMessageText(holder: MyViewHolder, msg: ChatMessage) {
+        val view = holder.mMessage
+        holder.markdown = null
+        if (msg === snapshot.streaming) {
+            // Editable so that streamed tokens can be appended in place, only the tail is laid out live
+            view.setText(msg.text, TextView.BufferType.EDITABLE)
+            if (!msg.isMessageFromUser()) {
+                holder.markdown = MarkdownRenderer().apply { append(view.editableText) }
             }
-            
-            // Show play button for bot messages if no message is currently playing
-            // or if this is the currently playing message
-            if (currentlyPlayingPosition == -1 || currentlyPlayingPosition == position) {
-                holder.mBotTtsFab.visibility = View.VISIBLE
-                // Set the appropriate icon based on play status
-                if (currentlyPlayingPosition == position) {
-                    holder.mBotTtsFab.setImageResource(R.drawable.ic_stop)
-                } else {
-                    holder.mBotTtsFab.setImageResource(R.drawable.ic_play_arrow)
-                }
+            return
+        }
+
+        val start = System.nanoTime()
+        val params = view.textMetricsParams
+        val precomputed = textCache.get(msg, params)
+        if (precomputed != null) {
+            view.text = precomputed
+        } else {
+            view.text = styleText(msg, msg.message)
+            textCache.prefetch(msg, params)
+        }
+        textCache.recordBind(precomputed != null, System.nanoTime() - start)
+    }
+
+    /**
+     * Bot answers are rendered as markdown, user input is shown as typed
+     */
+    private fun styleText(msg: ChatMessage, text: String): CharSequence {
+        return if (msg.isMessageFromUser()) text else MarkdownRenderer.render(text)
+    }
+
+    private fun prefetchText(msg: ChatMessage) {
+        if (msg === snapshot.streaming) return
+        val params = (if (msg.isMessageFromUser()) userTextParams else botTextParams) ?: return
+        textCache.prefetch(msg, params)
+    }
+
+    private fun bindPlayState(holder: MyViewHolder, msg: ChatMessage) {
+        val fab = holder.mTtsFab
+        val playing = snapshot.playing
+
+        // Show play button if no message is currently playing
+        // or if this is the currently playing message
+        if (playing == null || playing === msg) {
+            fab.visibility = View.VISIBLE
+            // Set the appropriate icon based on play status
+            if (playing === msg) {
+                fab.setImageResource(R.drawable.ic_stop)
             } else {
-                holder.mBotTtsFab.visibility = View.GONE
+                fab.setImageResource(R.drawable.ic_play_arrow)
             }
-            
-            holder.mUserTtsFab.visibility = View.GONE
-            
-            // Set up bot message TTS FAB click listener
-            setupTtsFabListener(holder.mBotTtsFab, msg, position)
+        } else {
+            fab.visibility = View.GONE
         }
     }
-    
-    private fun setupTtsFabListener(fab: FloatingActionButton, message: ChatMessage, position: Int) {
+
+    /**
+     * Report the message being spoken to the model, only the play buttons that change are rebound
+     * @param message message being spoken, null for none
+     */
+    private fun setPlaying(message: ChatMessage?) {
+        model.post(ConversationEvent.TtsState(message))
+    }
+
+    private fun bindTokenTiming(holder: MyViewHolder, msg: ChatMessage) {
+        // Show timing information for messages that have started generating
+        if (msg.timeToFirstTokenSeconds > 0) {
+            holder.mTimingView.visibility = View.VISIBLE
+            val timingText = formatTimingText(msg)
+            holder.mTimingView.text = timingText
+
+            // Style the timing view differently if message is still generating
+            holder.mTimingView.alpha = if (msg.totalTimeSeconds <= 0) 0.7f else 1.0f
+        } else {
+            holder.mTimingView.visibility = View.GONE
+        }
+    }
+
+    private fun setupTtsFabListener(fab: FloatingActionButton, holder: MyViewHolder) {
         // Normal click for play/stop
         fab.setOnClickListener {
-            if (currentlyPlayingPosition == position) {
+            // Resolve the position at click time, the bound one may be stale
+            val position = holder.bindingAdapterPosition
+            if (position == RecyclerView.NO_POSITION) return@setOnClickListener
+
+            val message = messages[position]
+            if (snapshot.playing === message) {
                 // This message is already playing, so stop it
                 stopTts()
-                currentlyPlayingPosition = -1
-                notifyDataSetChanged() // Refresh all views to show play buttons again
+                setPlaying(null)
             } else {
                 // Cancel any ongoing TTS first
-                if (currentlyPlayingPosition != -1) {
+                if (snapshot.playing != null) {
                     stopTts()
                 }
                 
-                // Start playing this message
-                currentlyPlayingPosition = position
-                fab.setImageResource(R.drawable.ic_stop)
-                
-                // Hide all other FABs
-                notifyDataSetChanged()
+                // Start playing this message, hiding all other FABs
+                setPlaying(message)
                 
                 // Play the message
                 playTts(message)
@@ -162,34 +376,32 @@ class MessageRecyclerViewAdapter(
         
         // Long press for playback mode selection
         fab.setOnLongClickListener {
-            showPlaybackModeMenu(it, message, position)
+            val position = holder.bindingAdapterPosition
+            if (position != RecyclerView.NO_POSITION) {
+                showPlaybackModeMenu(it, messages[position])
+            }
             true
         }
     }
     
     @SuppressLint("DefaultLocale")
-    private fun showPlaybackModeMenu(view: View, message: ChatMessage, position: Int) {
+    private fun showPlaybackModeMenu(view: View, message: ChatMessage) {
         val popupMenu = PopupMenu(context, view)
-        popupMenu.menu.add(0, 1, 0, "Play with MediaPlayer (Better quality)")
+        popupMenu.menu.add(0, 1, 0, "Play when synthesized (Smoother playback)")
         popupMenu.menu.add(0, 2, 0, "Play in real-time (Lower latency)")
 
         popupMenu.setOnMenuItemClickListener { item ->
             // Cancel any ongoing TTS first
-            if (currentlyPlayingPosition != -1) {
+            if (snapshot.playing != null) {
                 stopTts()
             }
             
-            // Start playing this message
-            currentlyPlayingPosition = position
-            val fab = view as FloatingActionButton
-            fab.setImageResource(R.drawable.ic_stop)
-            
-            // Hide all other FABs
-            notifyDataSetChanged()
+            // Start playing this message, hiding all other FABs
+            setPlaying(message)
             
             when (item.itemId) {
-                1 -> { // File-based playback (MediaPlayer)
-                    Toast.makeText(context, "Using MediaPlayer for better quality", Toast.LENGTH_SHORT).show()
+                1 -> { // Whole utterance played from memory
+                    Toast.makeText(context, "Playing once the speech is synthesized", Toast.LENGTH_SHORT).show()
                     playTts(message)
                     true
                 }
@@ -223,66 +435,117 @@ class MessageRecyclerViewAdapter(
                 val timeSource = TimeSource.Monotonic
                 val start = timeSource.markNow()
 
-                // Dummy callback function that always continues
-                val dummyCallback: (FloatArray) -> Int = { _ -> 1 }
-                
-                // Generate audio (this can be CPU intensive)
-                val audio = TtsEngine.tts!!.generateWithCallback(
-                    text = message.message,
-                    sid = TtsEngine.speakerId,
-                    speed = TtsEngine.speed,
-                    callback = dummyCallback // Use dummy callback that does nothing
-                )
+                // Speech played before is not synthesized again
+                val key = TtsEngine.cacheKey(message.message)
+                val cached = TtsEngine.cachedSpeech(message.message)
+                val audio = if (cached != null) {
+                    recordCacheHit(start.elapsedNow().inWholeMilliseconds, cached)
+                    cached
+                } else {
+                    // Long texts are synthesized sentence by sentence on the pool and played as they are ready
+                    val sentences = ArrayList<String>()
+                    SentenceSegmenter { sentence, _ -> sentences.add(sentence) }.apply {
+                        append(message.message)
+                        flush()
+                    }
+                    if (sentences.size > 1 && TtsPool.size > 1) {
+                        playPooled(key, sentences)
+                        return@launch
+                    }
 
-                val elapsed = start.elapsedNow().inWholeMilliseconds.toFloat() / 1000
-                val audioDuration = audio.samples.size / TtsEngine.tts!!.sampleRate().toFloat()
-                val rtfInfo = String.format(
-                    "Number of threads: %d\nElapsed: %.3f s\nAudio duration: %.3f s\nRTF: %.3f/%.3f = %.3f",
-                    TtsEngine.tts!!.config.model.numThreads,
-                    elapsed,
-                    audioDuration,
-                    elapsed,
-                    audioDuration,
-                    elapsed / audioDuration
-                )
-                Log.d(TAG, rtfInfo)
+                    // Dummy callback function that always continues
+                    val dummyCallback: (FloatArray) -> Int = { _ -> 1 }
 
-                // Save the generated audio file
-                val filename = context.filesDir.absolutePath + "/generated.wav"
-                val ok = audio.samples.isNotEmpty() && audio.save(filename)
+                    // Generate audio (this can be CPU intensive)
+                    val generated = ThreadPlacement.withPlacement(InferenceRole.TTS) {
+                        TtsEngine.tts!!.generateWithCallback(
+                            text = message.message,
+                            sid = TtsEngine.speakerId,
+                            speed = TtsEngine.speed,
+                            callback = dummyCallback // Use dummy callback that does nothing
+                        )
+                    }
+
+                    val elapsed = start.elapsedNow().inWholeMilliseconds.toFloat() / 1000
+                    val audioDuration = generated.samples.size / TtsEngine.tts!!.sampleRate().toFloat()
+                    val rtfInfo = String.format(
+                        "Number of threads: %d\nElapsed: %.3f s\nAudio duration: %.3f s\nRTF: %.3f/%.3f = %.3f",
+                        TtsEngine.tts!!.config.model.numThreads,
+                        elapsed,
+                        audioDuration,
+                        elapsed,
+                        audioDuration,
+                        elapsed / audioDuration
+                    )
+                    Log.d(TAG, rtfInfo)
+                    ThreadPlacement.recordRtf(InferenceRole.TTS, elapsed.toDouble(), audioDuration.toDouble())
+                    TtsPool.recordSingle(elapsed.toDouble(), audioDuration.toDouble())
+                    TtsEngine.cache?.put(key, generated.samples, generated.sampleRate)
+                    PcmCache.Entry(generated.samples, generated.sampleRate)
+                }
 
                 // Update UI on main thread
                 withContext(Dispatchers.Main) {
-                    if (ok) {
-                        Log.d(TAG, "TTS generation successful, playing audio with MediaPlayer")
-                        // Play the generated audio
-                        TtsEngine.onClickPlay(context, context.filesDir.absolutePath)
-                        
-                        // Set up a callback for when playback completes
-                        TtsEngine.setPlaybackCompletionListener {
-                            if (currentlyPlayingPosition != -1) {
-                                currentlyPlayingPosition = -1
-                                notifyDataSetChanged() // Reset all FABs
-                            }
-                        }
+                    // Set up a callback for when playback completes
+                    TtsEngine.setPlaybackCompletionListener {
+                        setPlaying(null) // Reset all FABs
+                    }
+
+                    // Play the samples straight from memory
+                    if (TtsEngine.playSamples(context, audio.samples, audio.sampleRate)) {
+                        Log.d(TAG, "TTS generation successful, playing audio from memory")
                     } else {
-                        Log.e(TAG, "Failed to generate audio file")
+                        Log.e(TAG, "Failed to play generated audio")
                         Toast.makeText(context, "Failed to generate audio", Toast.LENGTH_SHORT).show()
-                        currentlyPlayingPosition = -1
-                        notifyDataSetChanged()
+                        setPlaying(null)
                     }
                 }
             } catch (e: Exception) {
                 Log.e(TAG, "Error generating TTS: ${e.message}")
                 withContext(Dispatchers.Main) {
                     Toast.makeText(context, "TTS error: ${e.message}", Toast.LENGTH_SHORT).show()
-                    currentlyPlayingPosition = -1
-                    notifyDataSetChanged()
+                    setPlaying(null)
                 }
             }
         }
     }
     
+    /**
+     * Play a long text synthesized on the TTS pool, every sentence as soon as it is ready and in order
+     */
+    private suspend fun playPooled(key: String, sentences: List<String>) {
+        val writer = withContext(Dispatchers.Main) {
+            TtsEngine.setPlaybackMode(TtsPlaybackMode.REAL_TIME)
+            TtsEngine.trackPause()
+            TtsEngine.trackFlush()
+            TtsEngine.trackPlay()
+            startAudioWriter()
+        }
+
+        // Reset the play button once the writer has played everything out
+        writer.onPlayedOut = {
+            scope.launch(Dispatchers.Main) {
+                if (audioWriter === writer) {
+                    audioWriter = null
+                    setPlaying(null)
+                }
+            }
+        }
+
+        // The run is cancelled by stopping its own writer, which every stop and every new playback does
+        val sampleRate = TtsEngine.tts!!.sampleRate()
+        val stitcher = SentenceStitcher(writer, sampleRate, TtsEngine.sentencePauseMs)
+        val samples = TtsPool.synthesize(sentences,
+            { audio -> stitcher.sentence(audio) },
+            { writer.isStopped })
+        stitcher.finish()
+        writer.finish()
+        stitcher.record()
+        if (samples.isNotEmpty()) {
+            TtsEngine.cache?.put(key, samples, sampleRate)
+        }
+    }
+
     /**
      * Play TTS with real-time AudioTrack playback
      */
@@ -300,21 +563,9 @@ class MessageRecyclerViewAdapter(
         TtsEngine.trackPause()
         TtsEngine.trackFlush()
         TtsEngine.trackPlay()
-        TtsEngine.sample = Channel<FloatArray>()
-        
-        // Launch a coroutine to write samples (on IO thread)
-        scope.launch {
-            try {
-                for (sample in TtsEngine.sample) {
-                    TtsEngine.trackWrite(sample, 0, sample.size)
-                    if (TtsEngine.trackState) {
-                        break
-                    }
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "Error writing TTS samples: ${e.message}")
-            }
-        }
+
+        // Samples go through the session's ring buffer to the audio writer thread
+        val writer = startAudioWriter()
         
         // Launch a coroutine to generate audio with real-time callback
         currentTtsJob = scope.launch {
@@ -323,34 +574,52 @@ class MessageRecyclerViewAdapter(
                 val timeSource = TimeSource.Monotonic
                 val start = timeSource.markNow()
                 
-                // Use a function reference for the callback
-                val callbackFn: (FloatArray) -> Int = { samples ->
-                    realtimeCallback(samples)
+                // Speech played before goes straight to the writer
+                val key = TtsEngine.cacheKey(message.message)
+                val cached = TtsEngine.cachedSpeech(message.message)
+                val audioDuration: Float
+                if (cached != null) {
+                    recordCacheHit(start.elapsedNow().inWholeMilliseconds, cached)
+                    realtimeCallback(writer, cached.samples)
+                    writer.finish()
+                    audioDuration = cached.samples.size / cached.sampleRate.toFloat()
+                } else {
+                    // Use a function reference for the callback
+                    val callbackFn: (FloatArray) -> Int = { samples ->
+                        realtimeCallback(writer, samples)
+                    }
+
+                    // Generate audio with real-time callback
+                    val audio = ThreadPlacement.withPlacement(InferenceRole.TTS) {
+                        TtsEngine.tts!!.generateWithCallback(
+                            text = message.message,
+                            sid = TtsEngine.speakerId,
+                            speed = TtsEngine.speed,
+                            callback = callbackFn
+                        )
+                    }
+
+                    // Let the writer drain what is queued and exit
+                    writer.finish()
+
+                    val elapsed = start.elapsedNow().inWholeMilliseconds.toFloat() / 1000
+                    audioDuration = audio.samples.size / TtsEngine.tts!!.sampleRate().toFloat()
+                    Log.d(TAG, "Real-time TTS completed in ${elapsed}s (audio duration: ${audioDuration}s)")
+                    ThreadPlacement.recordRtf(InferenceRole.TTS, elapsed.toDouble(), audioDuration.toDouble())
+
+                    // A generation stopped by the user is incomplete and not cached
+                    if (!TtsEngine.trackState) {
+                        TtsEngine.cache?.put(key, audio.samples, audio.sampleRate)
+                    }
                 }
                 
-                // Generate audio with real-time callback
-                val audio = TtsEngine.tts!!.generateWithCallback(
-                    text = message.message,
-                    sid = TtsEngine.speakerId,
-                    speed = TtsEngine.speed,
-                    callback = callbackFn
-                )
-                
-                // Close the sample channel
-                TtsEngine.sample.close()
-                
-                val elapsed = start.elapsedNow().inWholeMilliseconds.toFloat() / 1000
-                val audioDuration = audio.samples.size / TtsEngine.tts!!.sampleRate().toFloat()
-                Log.d(TAG, "Real-time TTS completed in ${elapsed}s (audio duration: ${audioDuration}s)")
-                
                 // Auto-complete playback after a slight delay to ensure all audio is played
                 withContext(Dispatchers.Main) {
                     // Set up a timer to reset the UI after the audio completes
                     scope.launch {
                         kotlinx.coroutines.delay((audioDuration * 1000).toLong() + 500)
-                        if (currentlyPlayingPosition != -1) {
-                            currentlyPlayingPosition = -1
-                            notifyDataSetChanged() // Reset all FABs
+                        withContext(Dispatchers.Main) {
+                            setPlaying(null) // Reset all FABs
                         }
                     }
                 }
@@ -359,24 +628,21 @@ class MessageRecyclerViewAdapter(
                 Log.e(TAG, "Error in real-time TTS generation: ${e.message}")
                 withContext(Dispatchers.Main) {
                     Toast.makeText(context, "TTS error: ${e.message}", Toast.LENGTH_SHORT).show()
-                    currentlyPlayingPosition = -1
-                    notifyDataSetChanged()
+                    setPlaying(null)
                 }
             }
         }
     }
     
+    private fun recordCacheHit(lookupMs: Long, entry: PcmCache.Entry) {
+        val audioSeconds = entry.samples.size / entry.sampleRate.toDouble()
+        PerfLog.record("PcmCache", String.format(Locale.ENGLISH,
+            "Hit: %.2f s of speech ready in %d ms", audioSeconds, lookupMs))
+    }
+
     // Callback for real-time TTS playback
-    private fun realtimeCallback(samples: FloatArray): Int {
-        if (!TtsEngine.trackState) {
-            val samplesCopy = samples.copyOf()
-            scope.launch {
-                try {
-                    TtsEngine.sample.send(samplesCopy)
-                } catch (e: Exception) {
-                    Log.e(TAG, "Error sending TTS samples: ${e.message}")
-                }
-            }
+    private fun realtimeCallback(writer: AudioWriter, samples: FloatArray): Int {
+        if (!TtsEngine.trackState && writer.write(samples)) {
             return 1
         } else {
             TtsEngine.trackStop()
@@ -389,11 +655,22 @@ class MessageRecyclerViewAdapter(
         // Cancel the TTS job if it's running
         currentTtsJob?.cancel()
         currentTtsJob = null
+        audioWriter?.stop()
+        audioWriter = null
         
         // Stop the TTS engine
         TtsEngine.onCLickStop()
     }
 
+    /**
+     * Stop any streaming or per-message TTS and reset the play buttons
+     */
+    fun stopSpeaking() {
+        stopStreamingTts()
+        stopTts()
+        setPlaying(null)
+    }
+
     private fun formatTimingText(msg: ChatMessage): String {
         val firstTokenTime = msg.timeToFirstTokenSeconds
         val totalTime = msg.totalTimeSeconds
@@ -405,50 +682,11 @@ class MessageRecyclerViewAdapter(
 
     override fun getItemCount(): Int = messages.size
 
-    fun addMessage(msg: ChatMessage) {
-        messages.add(msg)
-    }
-
-    /**
-     * Add a voice transcription message from the user
-     * @param message The transcribed message text
-     * @param transcriptionTimeMs The time it took to transcribe in milliseconds
-     */
-    fun addVoiceTranscriptionMessage(message: String, transcriptionTimeMs: Double) {
-        val msg = ChatMessage(message, MessageSender.USER, transcriptionTimeMs, true)
-        addMessage(msg)
-    }
-
     /**
-     * updateBotMessage: updates / inserts message on behalf of Bot
-     * @param bot_message message to update or insert
-     * @param startTime the time the message was sent
+     * @return true while a message is being spoken or streamed to TTS, can be called from any thread
      */
-    fun updateBotMessage(bot_message: String, startTime: Long) {
-        var lastMessageFromBot = false
+    fun isSpeaking(): Boolean = isStreamingTts || snapshot.playing != null
 
-        if (messages.size > 1) {
-            val lastMessage = messages.last()
-            if (lastMessage.mSender == MessageSender.BOT) {
-                lastMessageFromBot = true
-            }
-        } else {
-            // Create a new message with first token time
-            val firstTokenTime = System.currentTimeMillis() - startTime
-            addMessage(ChatMessage(bot_message, MessageSender.BOT, firstTokenTime.toDouble()))
-        }
-
-        if (lastMessageFromBot) {
-            val msg = messages.last()
-            msg.message += bot_message
-            msg.setMsToLastToken(startTime)
-        } else {
-            // Create a new message with first token time
-            val firstTokenTime = System.currentTimeMillis() - startTime
-            addMessage(ChatMessage(bot_message, MessageSender.BOT, firstTokenTime.toDouble()))
-        }
-    }
-    
     // Call this method to clean up resources when adapter is no longer needed
     fun cleanup() {
         // Stop any ongoing streaming TTS
@@ -467,10 +705,14 @@ class MessageRecyclerViewAdapter(
         
         // Reset state
         isStreamingTts = false
-        streamingTtsBuffer.clear()
+        segmenter.reset()
         
         // Release audio focus
         abandonAudioFocus()
+
+        PerfLog.record(SECTION, rowSummary())
+        TtsEngine.cache?.let { PerfLog.record("PcmCache", it.summary()) }
+        textCache.release()
     }
 
     /**
@@ -484,13 +726,17 @@ class MessageRecyclerViewAdapter(
         
         // Set streaming mode
         isStreamingTts = true
-        streamingTtsBuffer.clear()
-        streamingTtsBuffer.append(initialText)
+        streamingSentences = Channel(Channel.UNLIMITED)
+        segmenter.reset()
         
         Log.d(TAG, "Starting live realtime TTS with initial text: ${initialText.take(50)}...")
         
         // Start TTS in real-time mode
+        chunking.reset()
+        pendingChunks.set(0)
         initStreamingTts()
+        updateChunkWordLimit()
+        segmenter.append(initialText)
     }
     
     /**
@@ -504,13 +750,31 @@ class MessageRecyclerViewAdapter(
         if (newText.isNotEmpty() && newText.trim().isNotEmpty()) {
             Log.d(TAG, "Appending new text to streaming buffer: '${newText}'")
             
-            // Append the new text to our buffer
-            streamingTtsBuffer.append(newText)
+            // Sentences completed by the new text are queued for speech right away
+            updateChunkWordLimit()
+            segmenter.append(newText)
         }
         
         // No need to restart TTS - the streaming is continuous
     }
+
+    /**
+     * End the streamed text, the rest of it is spoken even without closing punctuation
+     */
+    fun finishStreamingTTS() {
+        if (!isStreamingTts) return
+        segmenter.flush()
+        streamingSentences.close()
+    }
     
+    /**
+     * Cut the text short while the audio queued would run out before a whole sentence is synthesized
+     */
+    private fun updateChunkWordLimit() {
+        chunkWordLimit = chunking.wordLimit(audioWriter?.fillMs ?: 0.0, pendingChunks.get())
+        segmenter.wordLimit = chunkWordLimit
+    }
+
     /**
      * Stop streaming TTS
      */
@@ -519,7 +783,8 @@ class MessageRecyclerViewAdapter(
         
         Log.d(TAG, "Stopping streaming TTS")
         isStreamingTts = false
-        streamingTtsBuffer.clear()
+        segmenter.reset()
+        streamingSentences.close()
         
         // Cancel streaming job
         streamingSpeechJob?.cancel()
@@ -532,14 +797,9 @@ class MessageRecyclerViewAdapter(
         // Abandon audio focus
         abandonAudioFocus()
         
-        // Make sure channel is closed safely
-        scope.launch {
-            try {
-                TtsEngine.sample.close()
-            } catch (e: Exception) {
-                Log.e(TAG, "Error closing sample channel: ${e.message}")
-            }
-        }
+        // Drop the samples still queued
+        audioWriter?.stop()
+        audioWriter = null
     }
     
     /**
@@ -684,54 +944,46 @@ class MessageRecyclerViewAdapter(
         TtsEngine.trackFlush()
         TtsEngine.trackPlay()
         
-        // Create a new buffered channel for this streaming session
-        TtsEngine.sample = Channel<FloatArray>(capacity = Channel.BUFFERED)
-        
-        // Launch worker coroutine to process audio samples
-        scope.launch {
-            try {
-                for (sample in TtsEngine.sample) {
-                    TtsEngine.trackWrite(sample, 0, sample.size)
-                    if (TtsEngine.trackState || !isStreamingTts) {
-                        Log.d(TAG, "Breaking out of sample processing loop")
-                        break
-                    }
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "Error processing TTS samples: ${e.message}")
-            }
-        }
+        // Samples of every sentence go through one ring buffer to the audio writer thread
+        val writer = startAudioWriter()
         
         // Start the continuous generation process
-        startContinuousStreamingTts()
+        startContinuousStreamingTts(writer)
+    }
+
+    /**
+     * Start a real-time audio session. Its ring holds a few seconds, about 512 KB at 24 kHz:
+     * the producer blocks while it is full, so more headroom would only cost allocation here
+     */
+    private fun startAudioWriter(): AudioWriter {
+        audioWriter?.stop()
+        return AudioWriter(TtsEngine.tts!!.sampleRate()).also {
+            audioWriter = it
+            it.start()
+        }
     }
     
     /**
-     * Start continuous streaming TTS that processes text as it's generated
+     * Start continuous streaming TTS that speaks every sentence as soon as it is complete
      */
-    private fun startContinuousStreamingTts() {
+    private fun startContinuousStreamingTts(writer: AudioWriter) {
+        val sentences = streamingSentences
+        // Sentences are joined without the silence of every separate Kokoro run
+        val stitcher = SentenceStitcher(writer, TtsEngine.tts!!.sampleRate(), TtsEngine.sentencePauseMs)
         streamingSpeechJob = scope.launch {
             try {
-                while (isStreamingTts) {
-                    val currentText = streamingTtsBuffer.toString()
-                    // Extract complete sentence matches from the buffer
-                    val matches = createCompleteSentenceMatches(currentText)
-                    if (matches.isNotEmpty()) {
-                        // Process each complete sentence
-                        for (match in matches) {
-                            val sentence = match.value.trim()
-                            if (sentence.isNotEmpty()) {
-                                Log.d(TAG, "Speaking sentence: '$sentence'")
-                                processSentenceTts(sentence)
-                            }
-                        }
-                        // Remove processed text up to the end of the last complete sentence
-                        val lastMatch = matches.last()
-                        streamingTtsBuffer.delete(0, lastMatch.range.last + 1)
-                    }
-                    // Small delay to prevent CPU thrashing
-                    kotlinx.coroutines.delay(50)
+                // Suspends until the segmenter emits the next sentence, no polling
+                for (chunk in sentences) {
+                    pendingChunks.decrementAndGet()
+                    if (!isStreamingTts) break
+                    Log.d(TAG, "Speaking sentence: '${chunk.text}'")
+                    processSentenceTts(stitcher, chunk)
                 }
+                // Every sentence has been generated, play out what is queued
+                stitcher.finish()
+                writer.finish()
+                chunking.record()
+                stitcher.record()
                 Log.d(TAG, "Continuous streaming TTS loop ended")
             } catch (e: Exception) {
                 Log.e(TAG, "Error in continuous streaming TTS: ${e.message}")
@@ -742,36 +994,47 @@ class MessageRecyclerViewAdapter(
     /**
      * Process a single sentence for TTS
      */
-    private fun processSentenceTts(sentence: String) {
+    private fun processSentenceTts(stitcher: SentenceStitcher, chunk: SpokenChunk) {
         if (!isStreamingTts) return
+        val sentence = chunk.text
         
         try {
+            // Phrases in the bank and sentences spoken before are not synthesized again
+            val cached = TtsEngine.cachedSpeech(sentence)
+            if (cached != null) {
+                if (!TtsEngine.trackState) {
+                    stitcher.sentence(cached.samples)
+                }
+                return
+            }
+
             // Create a simple stop check function for TTS generation
+            stitcher.begin()
             val callbackFn: (FloatArray) -> Int = { samples ->
-                if (!isStreamingTts || TtsEngine.trackState) {
+                if (!isStreamingTts || TtsEngine.trackState || !stitcher.write(samples)) {
                     0  // Stop
                 } else {
-                    // Process audio samples
-                    val samplesCopy = samples.copyOf()
-                    scope.launch {
-                        try {
-                            TtsEngine.sample.send(samplesCopy)
-                        } catch (e: Exception) {
-                            Log.e(TAG, "Error sending samples: ${e.message}")
-                        }
-                    }
                     1  // Continue
                 }
             }
             
             // Generate audio with callback
-            TtsEngine.tts!!.generateWithCallback(
-                text = sentence,
-                sid = TtsEngine.speakerId,
-                speed = TtsEngine.speed,
-                callback = callbackFn
-            )
-            
+            val start = System.nanoTime()
+            val audio = ThreadPlacement.withPlacement(InferenceRole.TTS) {
+                TtsEngine.tts!!.generateWithCallback(
+                    text = sentence,
+                    sid = TtsEngine.speakerId,
+                    speed = TtsEngine.speed,
+                    callback = callbackFn
+                )
+            }
+            stitcher.end()
+
+            // The measured RTF sizes the chunks that follow
+            if (!TtsEngine.trackState) {
+                chunking.recordSynthesis(chunk.words, (System.nanoTime() - start) / 1e9,
+                    audio.samples.size / audio.sampleRate.toDouble())
+            }
         } catch (e: Exception) {
             Log.e(TAG, "Error processing sentence for TTS: ${e.message}")
         }
@@ -792,23 +1055,21 @@ class MessageRecyclerViewAdapter(
     }
 
     /**
-     * Finds all complete sentences in the given text.
-     * A complete sentence is defined as any substring that ends with a punctuation mark (. ! ?),
-     * followed by whitespace or end-of-string.
+     * Text emitted by the segmenter for speech, with its word count for the chunking policy
      */
-    private fun createCompleteSentenceMatches(text: String): List<MatchResult> {
-        val regex = Regex(".*?[.!?](\\s+|$)")
-        return regex.findAll(text).toList()
-    }
+    private class SpokenChunk(val text: String, val words: Int)
 
     class MyViewHolder(itemView: View) : RecyclerView.ViewHolder(itemView) {
-        val mUserMessage: TextView = itemView.findViewById(R.id.user_message)
-        val mBotMessage: TextView = itemView.findViewById(R.id.bot_message)
-        val mLeftChatLayout: LinearLayout = itemView.findViewById(R.id.left_chat_layout)
-        val mRightChatLayout: LinearLayout = itemView.findViewById(R.id.right_chat_layout)
-        val mTokenTimingView: TextView = itemView.findViewById(R.id.token_timing_view)
-        val mTranscriptionTimingView: TextView = itemView.findViewById(R.id.transcription_timing_view)
-        val mBotTtsFab: FloatingActionButton = itemView.findViewById(R.id.bot_tts_fab)
-        val mUserTtsFab: FloatingActionButton = itemView.findViewById(R.id.user_tts_fab)
+        val mMessage: TextView = itemView.findViewById(R.id.message_text)
+        // Transcription time of voice input in user rows, token timing in bot rows
+        val mTimingView: TextView = itemView.findViewById(R.id.message_timing)
+        val mTtsFab: FloatingActionButton = itemView.findViewById(R.id.tts_fab)
+
+        // Message and text length shown by this holder, used by append binds
+        var boundMessage: ChatMessage? = null
+        var boundLength = 0
+
+        // Styles the markdown of the bot message streaming into this holder
+        var markdown: MarkdownRenderer? = null
     }
 }
@@ -0,0 +1,237 @@
+package com.edgeai.chatappv2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * MessageStore: Persistent, indexed store of the conversation history.
+ * Messages are appended as length-prefixed records to messages.dat, and messages.idx holds the
+ * 8-byte offset of every record, so any page of messages is found with a single index read
+ * no matter how long the history is.
+ *
+ * Indices are reserved when a message is shown and committed once it is complete (a bot answer
+ * only after its last token). Records are always written in index order; commits that arrive
+ * early are held back until the messages before them have been committed.
+ */
+public class MessageStore implements Closeable {
+
+    private static final String DATA_FILE = "messages.dat";
+    private static final String INDEX_FILE = "messages.idx";
+    private static final int RECORD_VERSION = 1;
+    private static final int OFFSET_BYTES = 8;
+    private static final int LENGTH_BYTES = 4;
+
+    private final FileChannel mData;
+    private final FileChannel mIndex;
+    private final TreeMap<Long, byte[]> mPending = new TreeMap<>();
+    private long mCount;     // Records on disk
+    private long mReserved;  // Indices handed out, >= mCount
+
+    public MessageStore(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        mData = FileChannel.open(new File(dir, DATA_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mIndex = FileChannel.open(new File(dir, INDEX_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+        mReserved = mCount;
+    }
+
+    /**
+     * size: Get the number of messages on disk
+     *
+     * @return number of committed messages
+     */
+    public synchronized long size() {
+        return mCount;
+    }
+
+    /**
+     * reservedSize: Get the number of messages including the ones reserved but not committed yet
+     *
+     * @return number of reserved messages
+     */
+    public synchronized long reservedSize() {
+        return mReserved;
+    }
+
+    /**
+     * reserve: Reserve the next index for a message
+     *
+     * @return index of the message in the history
+     */
+    public synchronized long reserve() {
+        return mReserved++;
+    }
+
+    /**
+     * commit: Write a message at its reserved index. Committing an index twice is a no-op.
+     * @param index: index returned by reserve()
+     * @param record: the message encoded with encode()
+     */
+    public synchronized void commit(long index, byte[] record) throws IOException {
+        if (index < mCount || index >= mReserved || mPending.containsKey(index)) {
+            return;
+        }
+        mPending.put(index, record);
+        while (!mPending.isEmpty() && mPending.firstKey() == mCount) {
+            write(mPending.pollFirstEntry().getValue());
+        }
+    }
+
+    /**
+     * read: Read a page of messages
+     * @param from: index of the first message
+     * @param count: maximum number of messages to read
+     *
+     * @return messages in index order, with their store index set
+     */
+    public synchronized List<ChatMessage> read(long from, int count) throws IOException {
+        long to = Math.min(from + count, mCount);
+        if (from < 0 || from >= to) {
+            return new ArrayList<>();
+        }
+
+        // The offsets of the whole page come from a single index read
+        ByteBuffer offsets = ByteBuffer.allocate((int) (to - from) * OFFSET_BYTES);
+        readFully(mIndex, offsets, from * OFFSET_BYTES);
+        offsets.flip();
+
+        ArrayList<ChatMessage> result = new ArrayList<>((int) (to - from));
+        ByteBuffer length = ByteBuffer.allocate(LENGTH_BYTES);
+        for (long i = from; i < to; i++) {
+            long offset = offsets.getLong();
+            length.clear();
+            readFully(mData, length, offset);
+            length.flip();
+
+            ByteBuffer record = ByteBuffer.allocate(length.getInt());
+            readFully(mData, record, offset + LENGTH_BYTES);
+            ChatMessage msg = decode(record.array());
+            msg.setStoreIndex(i);
+            result.add(msg);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mData.close();
+        mIndex.close();
+    }
+
+    /**
+     * encode: Serialize a message into a store record
+     * @param msg: the message
+     *
+     * @return the record
+     */
+    public static byte[] encode(ChatMessage msg) {
+        try {
+            byte[] text = msg.getMessage().getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length + 32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RECORD_VERSION);
+            out.writeByte(msg.mSender.ordinal());
+            out.writeBoolean(msg.isFromVoiceInput());
+            out.writeDouble(msg.getMsToFirstToken());
+            out.writeDouble(msg.getTotalGenerationTimeMs());
+            out.writeDouble(msg.getTranscriptionTimeMs());
+            out.writeInt(text.length);
+            out.write(text);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Not reachable with an in-memory stream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ChatMessage decode(byte[] record) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(record);
+        int version = in.get();
+        if (version != RECORD_VERSION) {
+            throw new IOException("Unsupported message record version " + version);
+        }
+        MessageSender sender = MessageSender.values()[in.get()];
+        boolean isVoiceInput = in.get() != 0;
+        double msToFirstToken = in.getDouble();
+        double totalGenerationTimeMs = in.getDouble();
+        double transcriptionTimeMs = in.getDouble();
+        int textLength = in.getInt();
+        String text = new String(record, in.position(), textLength, StandardCharsets.UTF_8);
+        return new ChatMessage(text, sender, msToFirstToken, totalGenerationTimeMs,
+                transcriptionTimeMs, isVoiceInput);
+    }
+
+    private void write(byte[] record) throws IOException {
+        long offset = mData.size();
+        ByteBuffer data = ByteBuffer.allocate(LENGTH_BYTES + record.length);
+        data.putInt(record.length).put(record).flip();
+        writeFully(mData, data, offset);
+
+        // The index entry goes last, so it never points at a partially written record
+        ByteBuffer entry = ByteBuffer.allocate(OFFSET_BYTES);
+        entry.putLong(offset).flip();
+        writeFully(mIndex, entry, mCount * OFFSET_BYTES);
+        mCount++;
+    }
+
+    /**
+     * Drop whatever an interrupted write left behind: a partial index entry,
+     * index entries without a complete record, and trailing bytes of a partial record
+     */
+    private void recover() throws IOException {
+        long count = mIndex.size() / OFFSET_BYTES;
+        long dataEnd = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(OFFSET_BYTES);
+        while (count > 0) {
+            buffer.clear();
+            readFully(mIndex, buffer, (count - 1) * OFFSET_BYTES);
+            buffer.flip();
+            long offset = buffer.getLong();
+            if (offset >= 0 && offset + LENGTH_BYTES <= mData.size()) {
+                buffer.clear().limit(LENGTH_BYTES);
+                readFully(mData, buffer, offset);
+                buffer.flip();
+                long end = offset + LENGTH_BYTES + buffer.getInt();
+                if (end <= mData.size()) {
+                    dataEnd = end;
+                    break;
+                }
+            }
+            count--;
+        }
+        mIndex.truncate(count * OFFSET_BYTES);
+        mData.truncate(dataEnd);
+        mCount = count;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of message store");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
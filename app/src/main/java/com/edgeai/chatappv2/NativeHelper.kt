@@ -190,9 +190,32 @@ object NativeHelper {
         Log.i(TAG, "===== End of Environment Variable Diagnostics =====");
     }
     
+    /**
+     * Pin a thread to a set of CPU cores
+     *
+     * @param tid kernel thread id, 0 for the calling thread
+     * @param cpuMask bit mask of allowed cores (bit N = cpuN)
+     * @return true if the affinity was applied, false otherwise
+     */
+    fun setThreadAffinity(tid: Int, cpuMask: Long): Boolean {
+        return libraryLoaded && setThreadAffinityNative(tid, cpuMask);
+    }
+
+    /**
+     * Get the CPU cores a thread may run on
+     *
+     * @param tid kernel thread id, 0 for the calling thread
+     * @return bit mask of allowed cores (bit N = cpuN), 0 if unknown
+     */
+    fun getThreadAffinity(tid: Int): Long {
+        return if (libraryLoaded) getThreadAffinityNative(tid) else 0L;
+    }
+
     // Native methods
     private external fun setEnvNative(name: String, value: String): Boolean;
     private external fun getEnvNative(name: String): String?;
     private external fun verifyAdspLibraryPathNative(): Boolean;
     private external fun printDiagnosticInfoNative();
+    private external fun setThreadAffinityNative(tid: Int, mask: Long): Boolean;
+    private external fun getThreadAffinityNative(tid: Int): Long;
 } 
\ No newline at end of file
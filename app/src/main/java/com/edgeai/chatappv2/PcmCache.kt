@@ -0,0 +1,276 @@
+package com.edgeai.chatappv2
+
+import android.util.Log
+import android.util.LruCache
+import com.edgeai.chatappv2.MainActivity.Companion.TAG
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.Locale
+import kotlin.math.abs
+import kotlin.math.ln
+
+/**
+ * PcmCache: Synthesized speech keyed by text, speaker, speed and model.
+ * Recently played audio is kept as float samples in an in-memory LRU bounded in bytes; every entry
+ * is also written to the cache directory as 16-bit PCM, half the size of the float samples, so a
+ * message replayed after a restart is not synthesized again either. The disk tier is trimmed to its
+ * byte budget by evicting the least recently used files.
+ *
+ * Entries can be pinned, as the phrase bank does: they stay in memory outside of the LRU and
+ * their files are never trimmed.
+ *
+ * Lookups read from disk, so they are made on a background thread like the synthesis they replace.
+ */
+class PcmCache(
+    private val dir: File,
+    memoryBytes: Int = 16 shl 20,
+    private val diskBytes: Long = 64L shl 20
+) {
+
+    companion object {
+        private const val SECTION = "PcmCache"
+        private const val MAGIC = 0x50434D31 // "PCM1"
+        private const val SUFFIX = ".pcm"
+
+        /**
+         * key: Cache key of a synthesis, whitespace differences in the text do not matter
+         */
+        @JvmStatic
+        fun key(text: String, speakerId: Int, speed: Float, modelId: String): String {
+            val normalized = text.trim().replace(Regex("\\s+"), " ")
+            // The speed goes last, so the same speech at other speeds shares a prefix
+            return String.format(Locale.ROOT, "%s|%d|%s|%.3f", modelId, speakerId, normalized, speed)
+        }
+    }
+
+    /**
+     * Entry: Samples of a cached synthesis
+     */
+    class Entry(val samples: FloatArray, val sampleRate: Int)
+
+    private val memory = object : LruCache<String, Entry>(memoryBytes) {
+        override fun sizeOf(key: String, value: Entry) = value.samples.size * 4
+    }
+
+    // Pinned entries and the names of their files, guarded by this
+    private val pinned = HashMap<String, Entry>()
+    private val pinnedFiles = HashSet<String>()
+
+    // Bytes used by the disk tier, -1 until the directory has been listed
+    private var diskUsed = -1L
+
+    @Volatile var pinnedHits = 0
+        private set
+    @Volatile var hits = 0
+        private set
+    @Volatile var diskHits = 0
+        private set
+    @Volatile var misses = 0
+        private set
+
+    /**
+     * get: Look up a synthesis, in memory first and then on disk
+     *
+     * @return the samples, or null if the text has not been synthesized with these settings
+     */
+    fun get(key: String): Entry? {
+        synchronized(this) { pinned[key] }?.let {
+            pinnedHits++
+            return it
+        }
+        memory.get(key)?.let {
+            hits++
+            return it
+        }
+
+        val file = fileFor(key)
+        if (file.isFile) {
+            try {
+                val entry = read(file, key)
+                if (entry != null) {
+                    file.setLastModified(System.currentTimeMillis())
+                    memory.put(key, entry)
+                    diskHits++
+                    return entry
+                }
+            } catch (e: IOException) {
+                Log.w(TAG, "Dropping unreadable TTS cache file ${file.name}: ${e.message}")
+            }
+            delete(file)
+        }
+        misses++
+        return null
+    }
+
+    /**
+     * atAnySpeed: Find the same speech in memory at another speed, for time-stretching
+     *
+     * @return the entry synthesized closest to normal speed, with its speed
+     */
+    fun atAnySpeed(key: String): Pair<Entry, Float>? {
+        val prefix = key.substring(0, key.lastIndexOf('|') + 1)
+        val candidates = synchronized(this) { HashMap(pinned) }
+        candidates.putAll(memory.snapshot())
+
+        var best: Pair<Entry, Float>? = null
+        for ((candidate, entry) in candidates) {
+            if (!candidate.startsWith(prefix)) continue
+            val speed = candidate.substring(prefix.length).toFloatOrNull() ?: continue
+            if (best == null || abs(ln(speed)) < abs(ln(best.second))) {
+                best = Pair(entry, speed)
+            }
+        }
+        return best
+    }
+
+    /**
+     * put: Store a complete synthesis in both tiers
+     */
+    fun put(key: String, samples: FloatArray, sampleRate: Int) {
+        if (samples.isEmpty()) return
+        memory.put(key, Entry(samples, sampleRate))
+
+        val file = fileFor(key)
+        try {
+            write(file, key, samples, sampleRate)
+            synchronized(this) {
+                if (diskUsed >= 0) {
+                    diskUsed += file.length()
+                }
+            }
+            trimDisk()
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to write TTS cache file: ${e.message}")
+            file.delete()
+        }
+    }
+
+    /**
+     * pin: Keep an entry in memory for good, storing it first if it is not cached yet
+     */
+    fun pin(key: String, entry: Entry) {
+        val file = fileFor(key)
+        synchronized(this) {
+            pinned[key] = entry
+            pinnedFiles.add(file.name)
+        }
+        memory.remove(key)
+        if (!file.isFile) {
+            try {
+                write(file, key, entry.samples, entry.sampleRate)
+                synchronized(this) {
+                    if (diskUsed >= 0) {
+                        diskUsed += file.length()
+                    }
+                }
+            } catch (e: IOException) {
+                Log.w(TAG, "Failed to write pinned TTS cache file: ${e.message}")
+            }
+        }
+    }
+
+    /**
+     * summary: Hit rates and size of both tiers
+     */
+    fun summary(): String = synchronized(this) {
+        String.format(Locale.ENGLISH,
+            "%d pinned hits, %d memory hits, %d disk hits, %d misses; %d pinned, memory %d KB in %d entries, disk %d KB",
+            pinnedHits, hits, diskHits, misses, pinned.size,
+            memory.size() / 1024, memory.snapshot().size, maxOf(diskUsed, 0) / 1024)
+    }
+
+    private fun fileFor(key: String): File {
+        val digest = MessageDigest.getInstance("SHA-1").digest(key.toByteArray(Charsets.UTF_8))
+        val name = StringBuilder(digest.size * 2)
+        for (b in digest) {
+            name.append(String.format(Locale.ROOT, "%02x", b))
+        }
+        return File(dir, name.append(SUFFIX).toString())
+    }
+
+    /**
+     * Read a cache file, null if it belongs to another key
+     */
+    private fun read(file: File, key: String): Entry? {
+        DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+            if (input.readInt() != MAGIC) throw IOException("Bad magic")
+            // The key is stored so a digest collision is never played as the wrong text
+            val stored = ByteArray(input.readInt())
+            input.readFully(stored)
+            if (String(stored, Charsets.UTF_8) != key) return null
+            val sampleRate = input.readInt()
+            val count = input.readInt()
+            val bytes = ByteArray(count * 2)
+            input.readFully(bytes)
+
+            val pcm = ByteBuffer.wrap(bytes).asShortBuffer()
+            val samples = FloatArray(count)
+            for (i in 0 until count) {
+                samples[i] = pcm.get(i) / 32768f
+            }
+            return Entry(samples, sampleRate)
+        }
+    }
+
+    private fun write(file: File, key: String, samples: FloatArray, sampleRate: Int) {
+        dir.mkdirs()
+        val bytes = ByteBuffer.allocate(samples.size * 2)
+        val pcm = bytes.asShortBuffer()
+        for (i in samples.indices) {
+            pcm.put(i, (samples[i].coerceIn(-1f, 1f) * 32767f).toInt().toShort())
+        }
+
+        // Written under a temporary name, a crash never leaves a truncated entry behind
+        val tmp = File(dir, file.name + ".tmp")
+        val keyBytes = key.toByteArray(Charsets.UTF_8)
+        DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(keyBytes.size)
+            out.write(keyBytes)
+            out.writeInt(sampleRate)
+            out.writeInt(samples.size)
+            out.write(bytes.array())
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete()
+            throw IOException("Cannot replace ${file.name}")
+        }
+    }
+
+    @Synchronized
+    private fun trimDisk() {
+        if (diskUsed in 0..diskBytes) return
+        val files = dir.listFiles { f -> f.name.endsWith(SUFFIX) } ?: return
+        if (diskUsed < 0) {
+            diskUsed = files.sumOf { it.length() }
+        }
+        if (diskUsed <= diskBytes) return
+
+        files.sortBy { it.lastModified() }
+        for (f in files) {
+            if (diskUsed <= diskBytes) break
+            if (f.name in pinnedFiles) continue
+            val length = f.length()
+            if (f.delete()) {
+                diskUsed -= length
+            }
+        }
+        PerfLog.record(SECTION, "Trimmed disk tier: ${summary()}")
+    }
+
+    @Synchronized
+    private fun delete(file: File) {
+        val length = file.length()
+        if (file.delete() && diskUsed >= 0) {
+            diskUsed -= length
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.edgeai.chatappv2
+
+import android.content.Context
+import android.util.Log
+import com.edgeai.chatappv2.MainActivity.Companion.TAG
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.Executors
+
+/**
+ * PerfLog: Performance log shared by the LLM, TTS and UI components.
+ * Every entry goes to logcat and, once initialized, is appended to files/perf.log
+ * so it can be pulled with adb after a session.
+ */
+object PerfLog {
+    private const val FILE_NAME = "perf.log"
+    private const val MAX_FILE_BYTES = 1L shl 20
+
+    private val writer = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "perf-log").apply { isDaemon = true }
+    }
+
+    @Volatile
+    private var logFile: File? = null
+
+    /**
+     * Enable writing entries to the performance log file
+     */
+    @JvmStatic
+    fun init(context: Context) {
+        if (logFile == null) {
+            logFile = File(context.filesDir, FILE_NAME)
+        }
+    }
+
+    /**
+     * Record a measurement
+     *
+     * @param section component reporting the measurement, e.g. "IntentRouter"
+     * @param message human readable measurement
+     */
+    @JvmStatic
+    fun record(section: String, message: String) {
+        Log.i(TAG, "[$section] $message")
+
+        val file = logFile ?: return
+        val line = "${System.currentTimeMillis()} [$section] $message\n"
+        writer.execute {
+            try {
+                // Keep a single rotated copy so the log never grows unbounded
+                if (file.length() > MAX_FILE_BYTES) {
+                    file.renameTo(File(file.parentFile, "$FILE_NAME.1"))
+                }
+                FileOutputStream(file, true).use { it.write(line.toByteArray()) }
+            } catch (e: IOException) {
+                Log.e(TAG, "Failed to write performance log: ${e.message}")
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.edgeai.chatappv2
+
+import android.util.Log
+import com.edgeai.chatappv2.MainActivity.Companion.TAG
+import java.util.Locale
+
+/**
+ * PhraseBank: Speech of the phrases the app says most often, ready before they are needed.
+ * After the TTS engine is created the welcome message, the settings preview text and the fixed
+ * replies of the intent router are synthesized on a background thread and pinned in the PCM cache.
+ * Their audio is also on disk, so on later launches the bank is only read back and synthesis is
+ * limited to phrases whose voice, speed or text changed. The first synthesis also takes Kokoro's
+ * cold start off the first utterance the user asks for. Once built, the bank is used to benchmark
+ * the time-stretch on a little core.
+ */
+object PhraseBank {
+    private const val SECTION = "PhraseBank"
+
+    const val WELCOME = "Hi! How can I help you?"
+
+    @Volatile
+    private var warming: Thread? = null
+
+    /**
+     * phrases: Texts kept in the bank for a language
+     */
+    @JvmStatic
+    fun phrases(lang: String): List<String> = listOf(
+        WELCOME,
+        TtsSettingsDialog.getSampleText(lang),
+    ) + IntentRouter.FIXED_REPLIES
+
+    /**
+     * warmUp: Build the bank in the background with the current voice and speed,
+     * called once the TTS engine is created
+     */
+    @JvmStatic
+    fun warmUp() {
+        val tts = TtsEngine.tts ?: return
+        val cache = TtsEngine.cache ?: return
+        if (warming?.isAlive == true) return
+
+        val phrases = phrases(TtsEngine.lang ?: "eng")
+        warming = Thread({ build(tts, cache, phrases) }, "phrase-bank").apply {
+            priority = Thread.MIN_PRIORITY
+            start()
+        }
+    }
+
+    /**
+     * awaitWarmUp: Wait until the bank is built, so it does not compete with a measurement
+     */
+    @JvmStatic
+    fun awaitWarmUp() {
+        warming?.join()
+    }
+
+    private fun build(tts: OfflineTts, cache: PcmCache, phrases: List<String>) {
+        val start = System.nanoTime()
+        var loaded = 0
+        var synthesized = 0
+        var audioSeconds = 0.0
+        var longest: PcmCache.Entry? = null
+        for (phrase in phrases) {
+            try {
+                val key = TtsEngine.cacheKey(phrase)
+                var entry = cache.get(key)
+                if (entry != null) {
+                    loaded++
+                } else {
+                    val audio = ThreadPlacement.withPlacement(InferenceRole.TTS) {
+                        tts.generateWithCallback(
+                            text = phrase,
+                            sid = TtsEngine.speakerId,
+                            speed = TtsEngine.speed,
+                            callback = { 1 }
+                        )
+                    }
+                    if (audio.samples.isEmpty()) continue
+                    entry = PcmCache.Entry(audio.samples, audio.sampleRate)
+                    synthesized++
+                }
+                cache.pin(key, entry)
+                audioSeconds += entry.samples.size / entry.sampleRate.toDouble()
+                if (entry.samples.size > (longest?.samples?.size ?: 0)) {
+                    longest = entry
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to add \"$phrase\" to the phrase bank: ${e.message}")
+            }
+        }
+        PerfLog.record(SECTION, String.format(Locale.ENGLISH,
+            "Built in %.0f ms: %d phrases read back, %d synthesized, %.1f s of speech",
+            (System.nanoTime() - start) / 1e6, loaded, synthesized, audioSeconds))
+
+        longest?.let { benchmarkTimeStretch(it) }
+    }
+
+    /**
+     * Measure replaying the longest phrase at other speeds on a single little core, the slowest place the
+     * time-stretch could run
+     */
+    private fun benchmarkTimeStretch(speech: PcmCache.Entry) {
+        val littleCores = ThreadPlacement.allCoresMask and ThreadPlacement.bigCoresMask.inv()
+        val cores = if (littleCores != 0L) littleCores else ThreadPlacement.allCoresMask
+        val previous = NativeHelper.getThreadAffinity(0)
+        NativeHelper.setThreadAffinity(0, cores and -cores)
+        try {
+            for (rate in floatArrayOf(0.75f, 1.25f, 1.5f)) {
+                TimeStretch.benchmark(speech.samples, speech.sampleRate, rate)
+            }
+        } finally {
+            NativeHelper.setThreadAffinity(0, previous)
+        }
+    }
+}
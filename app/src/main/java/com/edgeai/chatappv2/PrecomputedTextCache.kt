@@ -0,0 +1,121 @@
+package com.edgeai.chatappv2
+
+import android.os.Handler
+import android.os.Looper
+import android.text.PrecomputedText
+import android.util.LruCache
+import java.util.Locale
+import java.util.concurrent.Executors
+
+/**
+ * PrecomputedTextCache: Measures message text off the main thread with PrecomputedText and keeps
+ * the results in an LRU cache, so binding a long message only breaks lines with glyph measurements
+ * that already exist. PrecomputedText measurements do not depend on the view width, so one entry
+ * serves every width (rotation, split screen); entries are keyed by message, length and text style.
+ * The style function turns the message text into the spans shown, it runs on the worker as well.
+ */
+class PrecomputedTextCache(
+    maxChars: Int = 512 * 1024,
+    private val style: (ChatMessage, String) -> CharSequence = { _, text -> text }
+) {
+
+    companion object {
+        private const val SECTION = "PrecomputedText"
+    }
+
+    private data class Key(val id: Any, val length: Int, val params: PrecomputedText.Params)
+
+    private val cache = object : LruCache<Key, PrecomputedText>(maxChars) {
+        override fun sizeOf(key: Key, value: PrecomputedText): Int = maxOf(1, value.length)
+    }
+
+    private val worker = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "text-precompute").apply { isDaemon = true }
+    }
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // Keys queued or being computed, main thread only
+    private val inFlight = HashSet<Key>()
+
+    // Statistics, main thread only
+    private var hits = 0
+    private var misses = 0
+    private var hitBindNanos = 0L
+    private var missBindNanos = 0L
+    @Volatile private var precomputed = 0
+    @Volatile private var precomputeNanos = 0L
+
+    /**
+     * get: Look up the precomputed text of a message
+     *
+     * @param msg the message
+     * @param params text metrics of the TextView that will show it
+     * @return precomputed text, null if it has not been computed yet
+     */
+    fun get(msg: ChatMessage, params: PrecomputedText.Params): PrecomputedText? {
+        return cache.get(keyOf(msg, params))
+    }
+
+    /**
+     * prefetch: Compute the text of a finished message in the background
+     *
+     * @param msg the message, its text must not change anymore
+     * @param params text metrics of the TextView that will show it
+     */
+    fun prefetch(msg: ChatMessage, params: PrecomputedText.Params) {
+        val key = keyOf(msg, params)
+        if (worker.isShutdown || cache.get(key) != null || !inFlight.add(key)) return
+
+        // Snapshot the text here, the worker only reads fields that never change
+        val text = msg.message
+        worker.execute {
+            val start = System.nanoTime()
+            val result = PrecomputedText.create(style(msg, text), params)
+            precomputeNanos += System.nanoTime() - start
+            precomputed++
+            cache.put(key, result)
+            mainHandler.post { inFlight.remove(key) }
+        }
+    }
+
+    /**
+     * recordBind: Account the main thread time of binding a message's text
+     *
+     * @param hit true if the precomputed text was used
+     */
+    fun recordBind(hit: Boolean, nanos: Long) {
+        if (hit) {
+            hits++
+            hitBindNanos += nanos
+        } else {
+            misses++
+            missBindNanos += nanos
+        }
+    }
+
+    /**
+     * summary: Hit rate and average bind time with and without precomputed text
+     */
+    fun summary(): String {
+        return String.format(Locale.ENGLISH,
+            "binds: %d hits (%.3f ms avg), %d misses (%.3f ms avg), %d precomputed off-thread (%.3f ms avg)",
+            hits, if (hits > 0) hitBindNanos / 1e6 / hits else 0.0,
+            misses, if (misses > 0) missBindNanos / 1e6 / misses else 0.0,
+            precomputed, if (precomputed > 0) precomputeNanos / 1e6 / precomputed else 0.0)
+    }
+
+    /**
+     * release: Stop the worker and log the statistics
+     */
+    fun release() {
+        PerfLog.record(SECTION, summary())
+        worker.shutdownNow()
+        cache.evictAll()
+    }
+
+    private fun keyOf(msg: ChatMessage, params: PrecomputedText.Params): Key {
+        // Messages paged back in from the store are new objects, the store index identifies them
+        val id: Any = if (msg.storeIndex >= 0) msg.storeIndex else msg
+        return Key(id, msg.length, params)
+    }
+}
@@ -15,8 +15,11 @@ class PreferenceHelper(context: Context) {
     companion object {
         private const val KEY_SPEED = "tts_speed"
         private const val KEY_SPEAKER_ID = "tts_speaker_id"
+        private const val KEY_PLACEMENT_POLICY = "thread_placement_policy"
+        private const val KEY_SENTENCE_PAUSE = "tts_sentence_pause_ms"
         private const val DEFAULT_SPEED = 1.0f
         private const val DEFAULT_SPEAKER_ID = 0
+        private const val DEFAULT_SENTENCE_PAUSE_MS = 150
     }
     
     /**
@@ -46,4 +49,33 @@ class PreferenceHelper(context: Context) {
     fun setSpeakerId(speakerId: Int) {
         sharedPreferences.edit().putInt(KEY_SPEAKER_ID, speakerId).apply()
     }
+
+    /**
+     * Get the saved pause between spoken sentences, in milliseconds
+     */
+    fun getSentencePauseMs(): Int {
+        return sharedPreferences.getInt(KEY_SENTENCE_PAUSE, DEFAULT_SENTENCE_PAUSE_MS)
+    }
+
+    /**
+     * Save the pause between spoken sentences, in milliseconds
+     */
+    fun setSentencePauseMs(pauseMs: Int) {
+        sharedPreferences.edit().putInt(KEY_SENTENCE_PAUSE, pauseMs).apply()
+    }
+
+    /**
+     * Get the saved inference thread placement policy
+     */
+    fun getPlacementPolicy(): PlacementPolicy {
+        val name = sharedPreferences.getString(KEY_PLACEMENT_POLICY, null)
+        return PlacementPolicy.values().firstOrNull { it.name == name } ?: PlacementPolicy.DEFAULT
+    }
+
+    /**
+     * Save the inference thread placement policy
+     */
+    fun setPlacementPolicy(policy: PlacementPolicy) {
+        sharedPreferences.edit().putString(KEY_PLACEMENT_POLICY, policy.name).apply()
+    }
 }
\ No newline at end of file
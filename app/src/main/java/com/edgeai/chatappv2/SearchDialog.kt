@@ -0,0 +1,139 @@
+package com.edgeai.chatappv2
+
+import android.app.Dialog
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.text.Editable
+import android.text.TextWatcher
+import android.util.Log
+import android.view.LayoutInflater
+import android.widget.ArrayAdapter
+import android.widget.EditText
+import android.widget.ListView
+import android.widget.TextView
+import androidx.appcompat.app.AlertDialog
+import com.edgeai.chatappv2.MainActivity.Companion.TAG
+import java.io.IOException
+import java.util.Locale
+import java.util.concurrent.Executors
+
+/**
+ * Dialog to search the conversation history, picking a result scrolls the conversation to it
+ */
+class SearchDialog(
+    private val context: Context,
+    private val index: SearchIndex,
+    private val store: MessageStore,
+    private val onResult: OnResult
+) {
+    /**
+     * OnResult: Receives the store index of the result picked
+     */
+    fun interface OnResult {
+        fun onResult(index: Long)
+    }
+
+    companion object {
+        private const val SECTION = "SearchIndex"
+        private const val MAX_RESULTS = 50
+        private const val SNIPPET_LENGTH = 120
+
+        // Wait for a pause in typing before querying
+        private const val QUERY_DELAY_MS = 150L
+    }
+
+    private lateinit var dialog: Dialog
+    private lateinit var statusText: TextView
+    private lateinit var resultsAdapter: ArrayAdapter<String>
+
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val worker = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "search-query").apply { isDaemon = true }
+    }
+
+    // Store indices of the results shown, main thread only
+    private var hits = LongArray(0)
+    private var query = ""
+    private val runQuery = Runnable { search(query) }
+
+    fun show() {
+        val builder = AlertDialog.Builder(context)
+        val dialogView = LayoutInflater.from(context).inflate(R.layout.search_dialog, null)
+        builder.setView(dialogView)
+
+        val queryInput: EditText = dialogView.findViewById(R.id.search_query_input)
+        val resultsList: ListView = dialogView.findViewById(R.id.search_results_list)
+        statusText = dialogView.findViewById(R.id.search_status_text)
+        resultsAdapter = ArrayAdapter(context, android.R.layout.simple_list_item_1, ArrayList())
+        resultsList.adapter = resultsAdapter
+
+        queryInput.addTextChangedListener(object : TextWatcher {
+            override fun beforeTextChanged(s: CharSequence?, start: Int, count: Int, after: Int) {}
+            override fun onTextChanged(s: CharSequence?, start: Int, before: Int, count: Int) {}
+            override fun afterTextChanged(s: Editable?) {
+                query = s?.toString() ?: ""
+                mainHandler.removeCallbacks(runQuery)
+                mainHandler.postDelayed(runQuery, QUERY_DELAY_MS)
+            }
+        })
+        resultsList.setOnItemClickListener { _, _, position, _ ->
+            if (position < hits.size) {
+                onResult.onResult(hits[position])
+                dialog.dismiss()
+            }
+        }
+
+        dialog = builder.create()
+        dialog.setCancelable(true)
+        dialog.setOnDismissListener {
+            mainHandler.removeCallbacks(runQuery)
+            worker.shutdownNow()
+        }
+        dialog.show()
+    }
+
+    private fun search(text: String) {
+        if (worker.isShutdown) return
+        worker.execute {
+            val start = System.nanoTime()
+            val found = index.search(text, MAX_RESULTS)
+            val queryMs = (System.nanoTime() - start) / 1e6
+            PerfLog.record(SECTION, String.format(Locale.ENGLISH, "Query '%s': %d hits in %.2f ms",
+                text, found.size, queryMs))
+
+            // Snippets are read from the store, each result is a single index lookup
+            val words = SearchIndex.tokenize(text)
+            val snippets = ArrayList<String>(found.size)
+            for (hit in found) {
+                try {
+                    val msg = store.read(hit, 1).firstOrNull() ?: continue
+                    snippets.add(snippet(msg, words))
+                } catch (e: IOException) {
+                    Log.e(TAG, "Failed to read search result $hit: ${e.message}")
+                    snippets.add("")
+                }
+            }
+
+            mainHandler.post {
+                if (text != query) return@post
+                hits = found
+                resultsAdapter.clear()
+                resultsAdapter.addAll(snippets)
+                statusText.text = String.format(Locale.ENGLISH, "%d results in %.1f ms", found.size, queryMs)
+            }
+        }
+    }
+
+    private fun snippet(msg: ChatMessage, words: List<String>): String {
+        val text = msg.message.replace('\n', ' ')
+        val lower = text.lowercase(Locale.ROOT)
+        val at = words.map { lower.indexOf(it) }.filter { it >= 0 }.minOrNull() ?: 0
+
+        // Show the first hit with some context before it
+        val from = maxOf(0, minOf(at - SNIPPET_LENGTH / 4, text.length - SNIPPET_LENGTH))
+        val to = minOf(text.length, from + SNIPPET_LENGTH)
+        val sender = if (msg.isMessageFromUser()) "You" else "Bot"
+        return sender + ": " + (if (from > 0) "…" else "") + text.substring(from, to) + (if (to < text.length) "…" else "")
+    }
+}
@@ -0,0 +1,297 @@
+package com.edgeai.chatappv2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SearchIndex: Inverted index over the conversation history.
+ * Every term maps to the sorted store indices of the messages containing it. Terms are kept in
+ * sorted order, so a prefix query is a range of the term map, and the postings of the matching
+ * terms are combined as bitsets. Messages are added as they are committed to the MessageStore.
+ *
+ * The index is persisted as the sorted term list with delta and varint encoded postings, together
+ * with the store size it covers; messages committed after that are indexed again from the store
+ * on the next start. Adding a message twice is a no-op, so catching up is always safe.
+ */
+public class SearchIndex {
+
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final int VERSION = 1;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 32;
+
+    /**
+     * Postings: Sorted store indices of the messages containing a term
+     */
+    private static final class Postings {
+        int[] ids = new int[2];
+        int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] >= id) {
+                // Messages are committed out of order only when typing during a generation
+                int at = Arrays.binarySearch(ids, 0, size, id);
+                if (at >= 0) {
+                    return;
+                }
+                insert(-at - 1, id);
+                return;
+            }
+            insert(size, id);
+        }
+
+        private void insert(int at, int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+            }
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+        }
+    }
+
+    private final File mFile;
+    private TreeMap<String, Postings> mTerms = new TreeMap<>();
+    private long mCovered;    // Every message below this store index has been indexed
+    private long mPostings;
+    private boolean mDirty;
+
+    public SearchIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * add: Index a committed message
+     * @param index: store index of the message
+     * @param text: text of the message
+     */
+    public synchronized void add(long index, String text) {
+        for (String term : tokenize(text)) {
+            Postings postings = mTerms.get(term);
+            if (postings == null) {
+                postings = new Postings();
+                mTerms.put(term, postings);
+            }
+            int before = postings.size;
+            postings.add((int) index);
+            mPostings += postings.size - before;
+        }
+        if (index == mCovered) {
+            mCovered++;
+        }
+        mDirty = true;
+    }
+
+    /**
+     * covered: Get the store size up to which every message has been indexed
+     */
+    public synchronized long covered() {
+        return mCovered;
+    }
+
+    /**
+     * setCovered: Record that every message below index has been indexed
+     */
+    public synchronized void setCovered(long index) {
+        if (index > mCovered) {
+            mCovered = index;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * search: Find the messages matching every word of a query, each word as a prefix
+     * @param query: words to look for
+     * @param limit: maximum number of results
+     *
+     * @return store indices of the matching messages, newest first
+     */
+    public synchronized long[] search(String query, int limit) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return new long[0];
+        }
+
+        BitSet result = null;
+        for (String word : words) {
+            BitSet matches = new BitSet();
+            String end = word + Character.MAX_VALUE;
+            for (Postings postings : mTerms.subMap(word, true, end, false).values()) {
+                for (int i = 0; i < postings.size; i++) {
+                    matches.set(postings.ids[i]);
+                }
+            }
+            if (result == null) {
+                result = matches;
+            } else {
+                result.and(matches);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+
+        long[] hits = new long[Math.min(limit, result.cardinality())];
+        int id = result.length();
+        for (int i = 0; i < hits.length; i++) {
+            id = result.previousSetBit(id - 1);
+            hits[i] = id;
+        }
+        return hits;
+    }
+
+    /**
+     * summary: Size of the index
+     */
+    public synchronized String summary() {
+        return String.format(Locale.ENGLISH, "%d terms, %d postings, covers %d messages",
+                mTerms.size(), mPostings, mCovered);
+    }
+
+    /**
+     * load: Read the persisted index, merging in messages added in the meantime
+     */
+    public void load() throws IOException {
+        if (!mFile.isFile()) {
+            return;
+        }
+
+        TreeMap<String, Postings> terms = new TreeMap<>();
+        long covered;
+        long count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported search index " + mFile);
+            }
+            covered = in.readLong();
+            int termCount = in.readInt();
+            for (int t = 0; t < termCount; t++) {
+                String term = in.readUTF();
+                Postings postings = new Postings();
+                postings.size = readVarint(in);
+                postings.ids = new int[Math.max(2, postings.size)];
+                int id = 0;
+                for (int i = 0; i < postings.size; i++) {
+                    id += readVarint(in);
+                    postings.ids[i] = id;
+                }
+                count += postings.size;
+                terms.put(term, postings);
+            }
+        }
+
+        synchronized (this) {
+            // Messages added while loading are newer than the persisted ones
+            for (Map.Entry<String, Postings> entry : mTerms.entrySet()) {
+                Postings postings = terms.get(entry.getKey());
+                if (postings == null) {
+                    terms.put(entry.getKey(), entry.getValue());
+                    count += entry.getValue().size;
+                    continue;
+                }
+                Postings added = entry.getValue();
+                for (int i = 0; i < added.size; i++) {
+                    int before = postings.size;
+                    postings.add(added.ids[i]);
+                    count += postings.size - before;
+                }
+            }
+            mTerms = terms;
+            mPostings = count;
+            mCovered = Math.max(mCovered, covered);
+        }
+    }
+
+    /**
+     * save: Persist the index if it changed since it was loaded
+     *
+     * @return bytes written, 0 if the index did not change
+     */
+    public synchronized long save() throws IOException {
+        if (!mDirty) {
+            return 0;
+        }
+
+        // Write a new file and swap it in, a crash never leaves a partial index behind
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mCovered);
+            out.writeInt(mTerms.size());
+            for (Map.Entry<String, Postings> entry : mTerms.entrySet()) {
+                out.writeUTF(entry.getKey());
+                Postings postings = entry.getValue();
+                writeVarint(out, postings.size);
+                int previous = 0;
+                for (int i = 0; i < postings.size; i++) {
+                    writeVarint(out, postings.ids[i] - previous);
+                    previous = postings.ids[i];
+                }
+            }
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Cannot replace " + mFile);
+        }
+        mDirty = false;
+        return mFile.length();
+    }
+
+    /**
+     * tokenize: Split text into the distinct lower case terms that are indexed
+     * @param text: the text
+     *
+     * @return terms in order of first occurrence
+     */
+    public static List<String> tokenize(String text) {
+        LinkedHashSet<String> terms = new LinkedHashSet<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start >= MIN_TERM_LENGTH) {
+                    terms.add(lower.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+                }
+                start = -1;
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in search index");
+    }
+}
@@ -0,0 +1,156 @@
+package com.edgeai.chatappv2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * SearchIndexBenchmark: Measures the SearchIndex on a synthetic conversation of 100k messages.
+ * Words are drawn from a generated vocabulary with a Zipf distribution, like natural text, from a
+ * fixed seed so every run indexes the same corpus. The report gives the time to build, save and
+ * load the index, its size on disk and the p50/p99 latency of prefix queries, as JSON.
+ *
+ * SearchIndex is plain Java, so this runs on any JVM, as the search-index-benchmark job of the CI
+ * workflow does:
+ *   javac -d out SearchIndex.java SearchIndexBenchmark.java
+ *   java -cp out com.edgeai.chatappv2.SearchIndexBenchmark [messages]
+ */
+public class SearchIndexBenchmark {
+
+    private static final long SEED = 42;
+    private static final int DEFAULT_MESSAGES = 100_000;
+    private static final int VOCABULARY = 20_000;
+    private static final int MIN_WORDS = 4;
+    private static final int MAX_WORDS = 40;
+    private static final int QUERIES = 2_000;
+    private static final int WARM_UP_QUERIES = 500;
+    private static final int LIMIT = 50;
+    private static final String[] SYLLABLES = {
+            "ka", "lo", "mi", "ne", "ru", "ta", "so", "vi", "de", "pa",
+            "ri", "mo", "gu", "fe", "ba", "zi", "ho", "le", "nu", "ti",
+    };
+
+    public static void main(String[] args) throws IOException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MESSAGES;
+        System.out.println(run(messages));
+    }
+
+    /**
+     * run: Build, persist, reload and query an index of the given number of messages
+     *
+     * @return the measurements as a JSON document
+     */
+    public static String run(int messages) throws IOException {
+        Random random = new Random(SEED);
+        String[] vocabulary = vocabulary(random);
+        double[] zipf = zipf(vocabulary.length);
+
+        String[] corpus = new String[messages];
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < messages; i++) {
+            text.setLength(0);
+            int words = MIN_WORDS + random.nextInt(MAX_WORDS - MIN_WORDS + 1);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    text.append(' ');
+                }
+                text.append(vocabulary[sample(zipf, random)]);
+            }
+            corpus[i] = text.toString();
+        }
+
+        File file = File.createTempFile("search-index", ".bin");
+        try {
+            SearchIndex index = new SearchIndex(file);
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                index.add(i, corpus[i]);
+            }
+            double buildMs = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            long savedBytes = index.save();
+            double saveMs = (System.nanoTime() - start) / 1e6;
+
+            SearchIndex loaded = new SearchIndex(file);
+            start = System.nanoTime();
+            loaded.load();
+            double loadMs = (System.nanoTime() - start) / 1e6;
+
+            // Prefixes of 2 to 4 characters of words picked like the text, half of them paired
+            String[] queries = new String[QUERIES + WARM_UP_QUERIES];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = prefix(vocabulary[sample(zipf, random)], random);
+                if (random.nextBoolean()) {
+                    queries[i] += " " + prefix(vocabulary[sample(zipf, random)], random);
+                }
+            }
+            long hits = 0;
+            for (int i = 0; i < WARM_UP_QUERIES; i++) {
+                hits += loaded.search(queries[i], LIMIT).length;
+            }
+            double[] latencies = new double[QUERIES];
+            for (int i = 0; i < QUERIES; i++) {
+                start = System.nanoTime();
+                hits += loaded.search(queries[WARM_UP_QUERIES + i], LIMIT).length;
+                latencies[i] = (System.nanoTime() - start) / 1e6;
+            }
+            Arrays.sort(latencies);
+
+            return String.format(Locale.ENGLISH,
+                    "{\"messages\":%d,\"buildMs\":%.2f,\"messagesPerSecond\":%.0f,\"saveMs\":%.2f," +
+                            "\"savedBytes\":%d,\"loadMs\":%.2f,\"queries\":%d,\"queryP50Ms\":%.4f," +
+                            "\"queryP99Ms\":%.4f,\"queryMaxMs\":%.4f,\"hits\":%d,\"summary\":\"%s\"}",
+                    messages, buildMs, messages * 1000.0 / buildMs, saveMs, savedBytes, loadMs, QUERIES,
+                    percentile(latencies, 0.50), percentile(latencies, 0.99), latencies[QUERIES - 1],
+                    hits, loaded.summary());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static String[] vocabulary(Random random) {
+        String[] words = new String[VOCABULARY];
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < words.length; i++) {
+            word.setLength(0);
+            int syllables = 1 + random.nextInt(4);
+            for (int s = 0; s < syllables; s++) {
+                word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            words[i] = word.toString();
+        }
+        return words;
+    }
+
+    /**
+     * Cumulative Zipf distribution over ranks, the word of rank r is picked with weight 1 / r
+     */
+    private static double[] zipf(int size) {
+        double[] cumulative = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < size; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative, Random random) {
+        int at = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(at >= 0 ? at : -at - 1, cumulative.length - 1);
+    }
+
+    private static String prefix(String word, Random random) {
+        return word.substring(0, Math.min(word.length(), 2 + random.nextInt(3)));
+    }
+
+    private static double percentile(double[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+}
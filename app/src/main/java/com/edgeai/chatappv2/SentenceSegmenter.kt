@@ -0,0 +1,241 @@
+package com.edgeai.chatappv2
+
+import java.util.Locale
+
+/**
+ * SentenceSegmenter: Incremental sentence boundary detector for streaming TTS.
+ * Text is consumed as it is appended and every sentence is handed to the listener as soon as its
+ * boundary is certain, with constant work per character: the segmenter only keeps the sentence in
+ * progress, the length of the current word and a small state machine, and never rescans text.
+ *
+ * A sentence ends at . ! ? followed by whitespace (closing quotes and brackets stay with it) or at
+ * a line break. Decimal numbers never end a sentence. Titles such as "Dr." and list numbers such as
+ * "1." never end one either, while other abbreviations, initials and ellipses only end a sentence
+ * if the next word starts with an upper case letter or a digit.
+ *
+ * A long sentence can also be cut short while it streams: with a word limit set, the text is
+ * emitted at the first clause break (, ; :) after half the limit, or at the limit itself.
+ */
+class SentenceSegmenter(private val listener: Listener) {
+
+    /**
+     * Listener: Receives every complete sentence and its number of words, on the thread that appends the text
+     */
+    fun interface Listener {
+        fun onSentence(sentence: String, words: Int)
+    }
+
+    companion object {
+        // Longest word checked against the abbreviation lists
+        private const val MAX_ABBREVIATION_LENGTH = 6
+
+        private val TITLES = hashSetOf("mr", "mrs", "ms", "dr", "prof", "st", "jr", "sr", "vs", "no")
+        private val ABBREVIATIONS = hashSetOf("etc", "eg", "ie", "e.g", "i.e", "approx", "cf", "al", "fig", "inc", "ltd")
+    }
+
+    private enum class State {
+        TEXT,       // Inside a sentence
+        TERMINAL,   // After terminal punctuation, waiting for whitespace
+        PENDING,    // After whitespace, the next word decides whether the sentence ended
+    }
+
+    private enum class Terminal {
+        END,        // Ends the sentence
+        DEFER,      // Ends the sentence only if the next word starts one
+        NONE,       // Never ends the sentence
+    }
+
+    private val sentence = StringBuilder()
+    private var state = State.TEXT
+    private var terminal = Terminal.END
+    // Characters of the current word in the sentence, and the dots among them
+    private var wordLength = 0
+    private var dots = 0
+    private var letters = 0
+    // Complete words of the sentence in progress, the current word is not counted yet
+    private var words = 0
+
+    /**
+     * Words after which the sentence in progress is emitted early, set by the chunking policy
+     */
+    @Volatile
+    var wordLimit = Int.MAX_VALUE
+
+    /**
+     * append: Consume streamed text, emitting the sentences it completes
+     */
+    fun append(text: CharSequence) {
+        for (i in 0 until text.length) {
+            consume(text[i])
+        }
+    }
+
+    /**
+     * flush: Emit the text after the last boundary, called once the stream is complete
+     */
+    fun flush() {
+        emit()
+        state = State.TEXT
+    }
+
+    /**
+     * reset: Drop everything consumed so far
+     */
+    fun reset() {
+        sentence.setLength(0)
+        state = State.TEXT
+        wordLength = 0
+        dots = 0
+        letters = 0
+        words = 0
+        wordLimit = Int.MAX_VALUE
+    }
+
+    private fun consume(c: Char) {
+        if (c == '\n') {
+            // Line breaks end list items and headings that have no punctuation
+            emit()
+            state = State.TEXT
+            return
+        }
+
+        when (state) {
+            State.TEXT -> append(c)
+            State.TERMINAL -> {
+                if (c.isWhitespace()) {
+                    if (terminal == Terminal.END) {
+                        emit()
+                        state = State.TEXT
+                    } else {
+                        append(c)
+                        state = if (terminal == Terminal.DEFER) State.PENDING else State.TEXT
+                    }
+                } else {
+                    // Closing quotes and brackets belong to the sentence, anything else continues it
+                    if (!isTerminal(c) && !isCloser(c)) {
+                        state = State.TEXT
+                    }
+                    append(c)
+                }
+            }
+            State.PENDING -> {
+                if (c.isWhitespace()) {
+                    append(c)
+                } else {
+                    if (c.isUpperCase() || c.isDigit() || isOpener(c)) {
+                        emit()
+                    }
+                    state = State.TEXT
+                    append(c)
+                }
+            }
+        }
+    }
+
+    private fun append(c: Char) {
+        if (c.isWhitespace()) {
+            if (wordLength > 0) {
+                words++
+                wordLength = 0
+                if (state == State.TEXT && splitsHere()) {
+                    emit()
+                    return
+                }
+            }
+            // Leading whitespace of a sentence is not kept
+            if (sentence.isNotEmpty()) {
+                sentence.append(c)
+            }
+            wordLength = 0
+            dots = 0
+            return
+        }
+
+        sentence.append(c)
+        wordLength++
+        if (c.isLetterOrDigit()) {
+            letters++
+        }
+        if (isTerminal(c)) {
+            if (state == State.TEXT) {
+                state = State.TERMINAL
+                terminal = classify(c)
+            } else if (c == '.' || c == '…') {
+                // A run of dots is an ellipsis
+                terminal = Terminal.DEFER
+            }
+            if (c == '.') dots++
+        }
+    }
+
+    /**
+     * Decide what the terminal character just appended means, looking only at the current word
+     */
+    private fun classify(c: Char): Terminal {
+        if (c == '!' || c == '?') return Terminal.END
+        if (c == '…') return Terminal.DEFER
+
+        // Word before the dot, without the dot itself
+        val end = sentence.length - 1
+        val start = sentence.length - wordLength
+        val length = end - start
+        if (length == 0) return Terminal.END
+        if (length == 1 && sentence[start].isLetter()) {
+            // An initial, as in "J. R. R. Tolkien"
+            return Terminal.DEFER
+        }
+        if (dots > 0 && length <= MAX_ABBREVIATION_LENGTH) {
+            // Dotted abbreviations such as "e.g." and "U.S."
+            return Terminal.DEFER
+        }
+        if (start == 0 && isDigits(start, end)) {
+            // A numbered list item
+            return Terminal.NONE
+        }
+        if (length <= MAX_ABBREVIATION_LENGTH) {
+            val word = sentence.substring(start, end).lowercase(Locale.ROOT)
+            if (word in TITLES) return Terminal.NONE
+            if (word in ABBREVIATIONS) return Terminal.DEFER
+        }
+        return Terminal.END
+    }
+
+    /**
+     * Whether the sentence in progress is emitted early at the word that just ended
+     */
+    private fun splitsHere(): Boolean {
+        val limit = wordLimit
+        if (limit == Int.MAX_VALUE) return false
+        if (words >= limit) return true
+        val last = sentence[sentence.length - 1]
+        return words >= (limit + 1) / 2 && (last == ',' || last == ';' || last == ':')
+    }
+
+    private fun isDigits(start: Int, end: Int): Boolean {
+        for (i in start until end) {
+            if (!sentence[i].isDigit()) return false
+        }
+        return true
+    }
+
+    private fun emit() {
+        // Sentences without a single letter or digit, like a stray "-", are not spoken
+        if (letters > 0) {
+            val text = sentence.toString().trim()
+            if (text.isNotEmpty()) {
+                listener.onSentence(text, if (wordLength > 0) words + 1 else words)
+            }
+        }
+        sentence.setLength(0)
+        wordLength = 0
+        dots = 0
+        letters = 0
+        words = 0
+    }
+
+    private fun isTerminal(c: Char) = c == '.' || c == '!' || c == '?' || c == '…'
+
+    private fun isCloser(c: Char) = c == '"' || c == '\'' || c == ')' || c == ']' || c == '”' || c == '’' || c == '*'
+
+    private fun isOpener(c: Char) = c == '"' || c == '\'' || c == '(' || c == '[' || c == '“' || c == '*' || c == '-'
+}
@@ -0,0 +1,197 @@
+package com.edgeai.chatappv2
+
+import java.util.Locale
+
+/**
+ * SentenceStitcher: Joins the audio of separately synthesized sentences into one continuous stream.
+ * Every Kokoro run starts and ends with silence, so back to back sentences leave long gaps and
+ * often click where one run's last sample meets the next run's first. The stitcher sits between
+ * the synthesis and the audio writer. Leading silence is trimmed to a short margin, and trailing
+ * silence to the configured pause. The last few milliseconds are held back and crossfaded into
+ * the start of the next sentence.
+ *
+ * Samples are passed on as they are generated. Only a silent run is held back, because until more
+ * audio or the end of the sentence arrives it could be either a pause inside the sentence or the
+ * trailing silence.
+ */
+class SentenceStitcher(
+    private val writer: AudioWriter,
+    private val sampleRate: Int,
+    pauseMs: Int,
+) {
+
+    companion object {
+        private const val SECTION = "Stitching"
+
+        // Samples below this are silence, about -46 dBFS, well above Kokoro's noise floor
+        private const val SILENCE = 0.005f
+
+        // Kept before the first loud sample, so soft onsets like "h" or "f" are not cut
+        private const val ONSET_MARGIN_MS = 15
+
+        // Overlap of one sentence's end with the next one's start
+        private const val CROSSFADE_MS = 10
+    }
+
+    private val pauseSamples = sampleRate * pauseMs / 1000
+    private val onsetMargin = sampleRate * ONSET_MARGIN_MS / 1000
+
+    // Output not written yet, the crossfade blends the next sentence into it
+    private val tail = FloatArray(sampleRate * CROSSFADE_MS / 1000)
+    private var tailSize = 0
+    private var blended = 0
+
+    // Silence after the last loud sample of the current sentence
+    private var silence = FloatArray(sampleRate / 2)
+    private var silenceSize = 0
+
+    // Scratch for passing the tail and new samples on in one write
+    private var scratch = FloatArray(4096)
+
+    private var inSentence = false
+    private var leading = true
+
+    // Statistics
+    private var sentences = 0
+    private var leadingTrimmed = 0L
+    private var trailingTrimmed = 0L
+
+    /**
+     * Total silence removed so far, in seconds
+     */
+    val trimmedSeconds: Double
+        get() = (leadingTrimmed + trailingTrimmed).toDouble() / sampleRate
+
+    /**
+     * sentence: Pass on the whole audio of one sentence
+     *
+     * @return false once the audio session was stopped
+     */
+    fun sentence(samples: FloatArray): Boolean {
+        begin()
+        return write(samples) && end()
+    }
+
+    /**
+     * begin: The samples written next belong to a new sentence
+     */
+    fun begin() {
+        inSentence = true
+        leading = true
+        silenceSize = 0
+        blended = 0
+    }
+
+    /**
+     * write: Pass on the next samples of the current sentence
+     *
+     * @return false once the audio session was stopped, the generation should stop too
+     */
+    fun write(samples: FloatArray): Boolean {
+        var start = 0
+        if (leading) {
+            val first = samples.indexOfFirst { it > SILENCE || it < -SILENCE }
+            if (first < 0) {
+                leadingTrimmed += samples.size
+                return true
+            }
+            start = maxOf(0, first - onsetMargin)
+            leadingTrimmed += start
+            leading = false
+        }
+
+        var last = samples.size - 1
+        while (last >= start && samples[last] <= SILENCE && samples[last] >= -SILENCE) last--
+        if (last < start) {
+            hold(samples, start, samples.size - start)
+            return true
+        }
+
+        // The silence held so far was a pause inside the sentence
+        if (silenceSize > 0) {
+            if (!emit(silence, 0, silenceSize)) return false
+            silenceSize = 0
+        }
+        if (!emit(samples, start, last + 1 - start)) return false
+        hold(samples, last + 1, samples.size - last - 1)
+        return true
+    }
+
+    /**
+     * end: The current sentence is complete, its trailing silence is cut to the pause
+     *
+     * @return false once the audio session was stopped
+     */
+    fun end(): Boolean {
+        if (!inSentence) return true
+        inSentence = false
+        if (leading) {
+            // Nothing but silence, the sentence is dropped
+            return true
+        }
+        sentences++
+        val kept = minOf(silenceSize, pauseSamples)
+        trailingTrimmed += silenceSize - kept
+        silenceSize = 0
+        return emit(silence, 0, kept)
+    }
+
+    /**
+     * finish: Write the held back end of the last sentence, before the audio writer is finished
+     */
+    fun finish() {
+        end()
+        if (tailSize > 0) {
+            writer.write(tail, 0, tailSize)
+            tailSize = 0
+        }
+    }
+
+    /**
+     * record: Log how much silence was removed from the response
+     */
+    fun record() {
+        PerfLog.record(SECTION, String.format(Locale.ENGLISH,
+            "%d sentences, %.2f s of silence trimmed (%.2f s leading, %.2f s trailing), pause %d ms",
+            sentences, trimmedSeconds, leadingTrimmed.toDouble() / sampleRate,
+            trailingTrimmed.toDouble() / sampleRate, pauseSamples * 1000 / sampleRate))
+    }
+
+    private fun hold(samples: FloatArray, offset: Int, length: Int) {
+        if (silenceSize + length > silence.size) {
+            silence = silence.copyOf(maxOf(silence.size * 2, silenceSize + length))
+        }
+        System.arraycopy(samples, offset, silence, silenceSize, length)
+        silenceSize += length
+    }
+
+    /**
+     * Pass samples on, keeping the last crossfade length of them back in the tail
+     */
+    private fun emit(samples: FloatArray, offset: Int, length: Int): Boolean {
+        var position = offset
+        var remaining = length
+
+        // The start of a sentence fades in over the held back end of the previous one
+        while (blended < tailSize && remaining > 0) {
+            val weight = (blended + 1).toFloat() / (tailSize + 1)
+            tail[blended] = tail[blended] * (1 - weight) + samples[position] * weight
+            blended++
+            position++
+            remaining--
+        }
+        if (remaining == 0) return true
+        blended = tail.size
+
+        val total = tailSize + remaining
+        val keep = minOf(tail.size, total)
+        if (scratch.size < total) {
+            scratch = FloatArray(total)
+        }
+        System.arraycopy(tail, 0, scratch, 0, tailSize)
+        System.arraycopy(samples, position, scratch, tailSize, remaining)
+        System.arraycopy(scratch, total - keep, tail, 0, keep)
+        tailSize = keep
+        return total == keep || writer.write(scratch, 0, total - keep)
+    }
+}
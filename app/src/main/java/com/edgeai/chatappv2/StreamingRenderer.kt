@@ -0,0 +1,122 @@
+package com.edgeai.chatappv2
+
+import android.os.Handler
+import android.os.Looper
+import android.view.Choreographer
+import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import java.util.Locale
+
+/**
+ * StreamingRenderer: Applies ConversationModel snapshots to the UI at most once per display frame.
+ * Snapshots are published on the model thread; the latest one and all changes since the previous
+ * frame are handed to the sink on the main thread from a Choreographer frame callback, followed by
+ * a single scroll: to a revealed message, or to the bottom if the conversation grew there.
+ */
+class StreamingRenderer(
+    private val recyclerView: RecyclerView,
+    private val sink: Sink
+) : Choreographer.FrameCallback, ConversationModel.Listener {
+
+    /**
+     * Sink: Receives the latest snapshot and the changes since the previous frame, on the main thread
+     */
+    fun interface Sink {
+        fun onFrame(snapshot: ConversationSnapshot, changes: List<ConversationChange>)
+    }
+
+    companion object {
+        private const val SECTION = "StreamingRenderer"
+    }
+
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // Guarded by lock
+    private val lock = Any()
+    private var pendingSnapshot: ConversationSnapshot? = null
+    private var pendingChanges = ArrayList<ConversationChange>()
+    private var frameScheduled = false
+
+    // Per turn statistics, main thread only
+    private var tokenBatches = 0
+    private var updates = 0
+    private var mainThreadNanos = 0L
+
+    private val scheduleFrame = Runnable { Choreographer.getInstance().postFrameCallback(this) }
+
+    override fun onSnapshot(snapshot: ConversationSnapshot, changes: List<ConversationChange>) {
+        synchronized(lock) {
+            pendingSnapshot = snapshot
+            pendingChanges.addAll(changes)
+            if (frameScheduled) return
+            frameScheduled = true
+        }
+        mainHandler.post(scheduleFrame)
+    }
+
+    override fun doFrame(frameTimeNanos: Long) {
+        val start = System.nanoTime()
+        val snapshot: ConversationSnapshot
+        val changes: List<ConversationChange>
+        synchronized(lock) {
+            frameScheduled = false
+            snapshot = pendingSnapshot ?: return
+            changes = pendingChanges
+            pendingSnapshot = null
+            pendingChanges = ArrayList()
+        }
+
+        sink.onFrame(snapshot, changes)
+        val revealed = changes.lastOrNull { it is ConversationChange.Revealed } as ConversationChange.Revealed?
+        if (revealed != null) {
+            scrollTo(revealed.position)
+        } else if (changes.any { grewAtBottom(it) }) {
+            scrollToBottom()
+        }
+
+        val appended = changes.count { it is ConversationChange.Appended }
+        if (appended > 0) {
+            tokenBatches += appended
+            updates++
+            mainThreadNanos += System.nanoTime() - start
+        }
+        if (changes.any { it is ConversationChange.GenerationFinished }) {
+            reportTurn()
+        }
+    }
+
+    private fun reportTurn() {
+        if (tokenBatches == 0) return
+        PerfLog.record(SECTION, String.format(Locale.ENGLISH,
+            "%d token batches in %d UI updates, %.2f ms main thread (%.1f us/token batch)",
+            tokenBatches, updates, mainThreadNanos / 1e6, mainThreadNanos / 1e3 / tokenBatches))
+        tokenBatches = 0
+        updates = 0
+        mainThreadNanos = 0L
+    }
+
+    private fun grewAtBottom(change: ConversationChange): Boolean {
+        return (change is ConversationChange.Inserted && !change.paged) || change is ConversationChange.Appended
+    }
+
+    private fun scrollTo(position: Int) {
+        recyclerView.stopScroll()
+        val layoutManager = recyclerView.layoutManager as? LinearLayoutManager
+        if (layoutManager != null) {
+            layoutManager.scrollToPositionWithOffset(position, 0)
+        } else {
+            recyclerView.scrollToPosition(position)
+        }
+    }
+
+    private fun scrollToBottom() {
+        val last = (recyclerView.adapter?.itemCount ?: 0) - 1
+        if (last < 0) return
+
+        // Let a running smooth scroll finish instead of restarting it every frame,
+        // and never fight the user while they are dragging
+        if (recyclerView.scrollState == RecyclerView.SCROLL_STATE_IDLE) {
+            recyclerView.smoothScrollToPosition(last)
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.edgeai.chatappv2
+
+import android.os.Process
+import android.util.Log
+import com.edgeai.chatappv2.MainActivity.Companion.TAG
+import java.io.File
+import java.util.EnumMap
+import java.util.Locale
+
+/**
+ * Inference workloads whose worker threads get their own placement
+ */
+enum class InferenceRole {
+    LLM,  // Genie prompt processing and decode
+    TTS,  // Kokoro synthesis
+    ASR,  // Whisper transcription
+}
+
+/**
+ * Thread placement policies that can be selected at runtime
+ */
+enum class PlacementPolicy {
+    DEFAULT,     // Leave priority and affinity to the scheduler
+    BIG_CORES,   // All inference on the performance cores with raised priority
+    PRIME_CORE,  // LLM on the prime core(s), TTS and ASR on the remaining big cores
+}
+
+/**
+ * Priority (android.os.Process.THREAD_PRIORITY_*) and CPU core mask for a thread
+ * A cpuMask of 0 leaves the affinity untouched.
+ */
+data class ThreadPlacementSpec(val priority: Int, val cpuMask: Long)
+
+/**
+ * ThreadPlacement: Assigns priorities and CPU core masks to the LLM, TTS and ASR worker threads.
+ * Affinity is applied through NativeHelper (sched_setaffinity), priority through android.os.Process.
+ * Native threads spawned after a placement is applied inherit its affinity, so model loading is
+ * wrapped as well as inference.
+ */
+object ThreadPlacement {
+    private const val SECTION = "ThreadPlacement"
+
+    /**
+     * Currently selected policy, used for roles without a custom spec
+     */
+    @JvmStatic
+    @Volatile
+    var policy: PlacementPolicy = PlacementPolicy.DEFAULT
+        set(value) {
+            field = value
+            PerfLog.record(SECTION, "Policy set to $value")
+        }
+
+    // Custom per-role specs that override the policy
+    private val customSpecs = EnumMap<InferenceRole, ThreadPlacementSpec>(InferenceRole::class.java)
+
+    // Per policy and role: [samples, sum of rate]
+    private val throughput = HashMap<String, DoubleArray>()
+
+    /** Mask of all cores */
+    val allCoresMask: Long
+
+    /** Mask of the performance cores (every core faster than the slowest cluster) */
+    val bigCoresMask: Long
+
+    /** Mask of the fastest cluster */
+    val primeCoresMask: Long
+
+    init {
+        val maxFreqs = readMaxCoreFrequencies()
+        var all = 0L
+        var big = 0L
+        var prime = 0L
+        if (maxFreqs.isNotEmpty()) {
+            val slowest = maxFreqs.values.minOrNull() ?: 0L
+            val fastest = maxFreqs.values.maxOrNull() ?: 0L
+            for ((cpu, freq) in maxFreqs) {
+                val bit = 1L shl cpu
+                all = all or bit
+                if (freq > slowest) big = big or bit
+                if (freq == fastest) prime = prime or bit
+            }
+        } else {
+            for (cpu in 0 until minOf(Runtime.getRuntime().availableProcessors(), 64)) {
+                all = all or (1L shl cpu)
+            }
+        }
+        allCoresMask = all
+        // Homogeneous CPUs have no little cluster to avoid
+        bigCoresMask = if (big != 0L) big else all
+        primeCoresMask = if (prime != 0L) prime else bigCoresMask
+
+        Log.i(TAG, String.format(Locale.ENGLISH, "CPU topology: all=0x%x big=0x%x prime=0x%x",
+            allCoresMask, bigCoresMask, primeCoresMask))
+    }
+
+    /**
+     * configure: Override the policy with a custom priority and core mask for a role
+     *
+     * @param role inference role
+     * @param spec placement to use, null to go back to the policy
+     */
+    @JvmStatic
+    @Synchronized
+    fun configure(role: InferenceRole, spec: ThreadPlacementSpec?) {
+        if (spec == null) {
+            customSpecs.remove(role)
+        } else {
+            customSpecs[role] = spec
+        }
+    }
+
+    /**
+     * specFor: Resolve the placement for a role
+     *
+     * @return placement to apply, null to leave the thread to the scheduler
+     */
+    @JvmStatic
+    @Synchronized
+    fun specFor(role: InferenceRole): ThreadPlacementSpec? {
+        customSpecs[role]?.let { return it }
+
+        val otherBigCores = (bigCoresMask and primeCoresMask.inv()).takeIf { it != 0L } ?: bigCoresMask
+        return when (policy) {
+            PlacementPolicy.DEFAULT -> null
+            PlacementPolicy.BIG_CORES -> ThreadPlacementSpec(Process.THREAD_PRIORITY_FOREGROUND, bigCoresMask)
+            PlacementPolicy.PRIME_CORE -> when (role) {
+                InferenceRole.LLM -> ThreadPlacementSpec(Process.THREAD_PRIORITY_DISPLAY, primeCoresMask)
+                InferenceRole.TTS, InferenceRole.ASR ->
+                    ThreadPlacementSpec(Process.THREAD_PRIORITY_FOREGROUND, otherBigCores)
+            }
+        }
+    }
+
+    /**
+     * apply: Apply the placement for a role to the calling thread
+     *
+     * @return previous placement of the thread for restore(), null if nothing was changed
+     */
+    @JvmStatic
+    fun apply(role: InferenceRole): ThreadPlacementSpec? {
+        val spec = specFor(role) ?: return null
+        val tid = Process.myTid()
+        val previous = ThreadPlacementSpec(Process.getThreadPriority(tid), NativeHelper.getThreadAffinity(0))
+
+        try {
+            Process.setThreadPriority(spec.priority)
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to set $role thread priority to ${spec.priority}: ${e.message}")
+        }
+        if (spec.cpuMask != 0L && !NativeHelper.setThreadAffinity(0, spec.cpuMask)) {
+            Log.w(TAG, String.format(Locale.ENGLISH, "Failed to pin %s thread to 0x%x", role, spec.cpuMask))
+        }
+        return previous
+    }
+
+    /**
+     * restore: Restore a placement returned by apply()
+     */
+    @JvmStatic
+    fun restore(previous: ThreadPlacementSpec?) {
+        if (previous == null) return
+        try {
+            Process.setThreadPriority(previous.priority)
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to restore thread priority: ${e.message}")
+        }
+        if (previous.cpuMask != 0L) {
+            NativeHelper.setThreadAffinity(0, previous.cpuMask)
+        }
+    }
+
+    /**
+     * withPlacement: Run a block with the placement for a role, then restore the thread.
+     * Use this on pooled threads (e.g. Dispatchers.IO) so the placement does not leak.
+     */
+    @JvmStatic
+    inline fun <T> withPlacement(role: InferenceRole, block: () -> T): T {
+        val previous = apply(role)
+        try {
+            return block()
+        } finally {
+            restore(previous)
+        }
+    }
+
+    /**
+     * recordTokenRate: Report LLM decode throughput under the current policy
+     *
+     * @param tokens number of tokens received
+     * @param seconds time between the first and the last token
+     */
+    @JvmStatic
+    fun recordTokenRate(tokens: Int, seconds: Double) {
+        if (tokens <= 1 || seconds <= 0) return
+        record(InferenceRole.LLM, tokens / seconds, "tokens/s")
+    }
+
+    /**
+     * recordRtf: Report the real-time factor of a TTS or ASR run under the current policy
+     *
+     * @param role TTS or ASR
+     * @param elapsedSeconds processing time
+     * @param audioSeconds duration of the synthesized or transcribed audio
+     */
+    @JvmStatic
+    fun recordRtf(role: InferenceRole, elapsedSeconds: Double, audioSeconds: Double) {
+        if (audioSeconds <= 0) return
+        record(role, elapsedSeconds / audioSeconds, "RTF")
+    }
+
+    /**
+     * report: Average throughput per policy and role
+     */
+    @JvmStatic
+    @Synchronized
+    fun report(): String {
+        if (throughput.isEmpty()) return "no measurements"
+        return throughput.entries.sortedBy { it.key }.joinToString(", ") { (key, value) ->
+            String.format(Locale.ENGLISH, "%s=%.3f (n=%d)", key, value[1] / value[0], value[0].toInt())
+        }
+    }
+
+    private fun record(role: InferenceRole, value: Double, unit: String) {
+        val key = "${policy.name}/${role.name} $unit"
+        synchronized(this) {
+            val stats = throughput.getOrPut(key) { DoubleArray(2) }
+            stats[0] += 1.0
+            stats[1] += value
+        }
+        PerfLog.record(SECTION, String.format(Locale.ENGLISH, "%s: %.3f", key, value))
+        PerfLog.record(SECTION, report())
+    }
+
+    private fun readMaxCoreFrequencies(): Map<Int, Long> {
+        val result = HashMap<Int, Long>()
+        val cpuDirs = File("/sys/devices/system/cpu").listFiles { file ->
+            file.name.matches(Regex("cpu\\d+"))
+        } ?: return result
+
+        for (dir in cpuDirs) {
+            val cpu = dir.name.removePrefix("cpu").toInt()
+            if (cpu >= 64) continue
+            try {
+                val freq = File(dir, "cpufreq/cpuinfo_max_freq").readText().trim().toLong()
+                result[cpu] = freq
+            } catch (e: Exception) {
+                // Offline cores have no cpufreq node
+            }
+        }
+        return result
+    }
+}
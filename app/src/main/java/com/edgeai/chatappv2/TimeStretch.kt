@@ -0,0 +1,137 @@
+package com.edgeai.chatappv2
+
+import android.os.Debug
+import java.util.Locale
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.roundToInt
+
+/**
+ * TimeStretch: Changes the speed of synthesized speech without changing its pitch (WSOLA).
+ * The output is built from Hann-windowed frames overlapped by half a frame. Every frame is read
+ * from the input near its nominal position for the new speed, at the offset whose waveform
+ * best matches the natural continuation of the previous frame, so the overlaps add up in phase.
+ *
+ * The similarity search correlates the overlapping half frame at every other sample, which keeps
+ * the cost to a few million multiply-adds per second of 24 kHz speech, well within one little core.
+ */
+object TimeStretch {
+    private const val SECTION = "TimeStretch"
+
+    // Frame of 20 ms, searched within ±5 ms of its nominal position
+    private const val FRAME_MS = 20
+    private const val TOLERANCE_MS = 5
+
+    // Speed ratios closer to 1 than this are played as they are
+    private const val MIN_CHANGE = 0.01f
+
+    @Volatile
+    private var window = FloatArray(0)
+
+    /**
+     * stretch: Play audio faster or slower
+     *
+     * @param input samples of speech
+     * @param sampleRate sample rate of the input
+     * @param rate speed ratio, 1.5 plays the speech 1.5 times as fast
+     *
+     * @return samples of the stretched speech, the input itself if the ratio is about 1
+     */
+    @JvmStatic
+    fun stretch(input: FloatArray, sampleRate: Int, rate: Float): FloatArray {
+        val frame = (sampleRate * FRAME_MS / 1000) and 1.inv()
+        if (abs(rate - 1f) < MIN_CHANGE || input.size < frame * 2) {
+            return input
+        }
+
+        val hop = frame / 2
+        val tolerance = sampleRate * TOLERANCE_MS / 1000
+        val window = windowFor(frame)
+        val outputSize = (input.size / rate).toInt()
+        val output = FloatArray(outputSize + frame)
+
+        var previous = 0
+        var frames = 0
+        while (true) {
+            val outPos = frames * hop
+            if (outPos + frame > output.size) break
+
+            val position = if (frames == 0) {
+                0
+            } else {
+                val nominal = (frames * hop * rate).roundToInt()
+                bestPosition(input, previous + hop, nominal, tolerance, frame, hop)
+            }
+            if (position < 0 || position + frame > input.size) break
+
+            if (frames == 0) {
+                // The first frame is not faded in, there is nothing to overlap it with
+                for (i in 0 until hop) output[i] += input[i]
+                for (i in hop until frame) output[i] += input[i] * window[i]
+            } else {
+                for (i in 0 until frame) output[outPos + i] += input[position + i] * window[i]
+            }
+            previous = position
+            frames++
+        }
+
+        val produced = if (frames == 0) 0 else (frames - 1) * hop + frame
+        return output.copyOf(minOf(outputSize, produced))
+    }
+
+    /**
+     * benchmark: Measure the CPU cost of stretching speech on the calling thread
+     *
+     * @return CPU milliseconds spent per second of stretched audio
+     */
+    @JvmStatic
+    fun benchmark(speech: FloatArray, sampleRate: Int, rate: Float): Double {
+        val start = Debug.threadCpuTimeNanos()
+        val stretched = stretch(speech, sampleRate, rate)
+        val cpuNanos = Debug.threadCpuTimeNanos() - start
+        val audioSeconds = stretched.size / sampleRate.toDouble()
+        val msPerSecond = if (audioSeconds > 0) cpuNanos / 1e6 / audioSeconds else 0.0
+        PerfLog.record(SECTION, String.format(Locale.ENGLISH,
+            "%.2fx on %.1f s of speech: %.1f ms CPU per second of audio", rate, audioSeconds, msPerSecond))
+        return msPerSecond
+    }
+
+    /**
+     * Find where in [nominal - tolerance, nominal + tolerance] the input best continues the
+     * half frame starting at natural, the continuation of the previous frame
+     */
+    private fun bestPosition(input: FloatArray, natural: Int, nominal: Int, tolerance: Int,
+                             frame: Int, hop: Int): Int {
+        val first = maxOf(0, nominal - tolerance)
+        val last = minOf(input.size - frame, nominal + tolerance)
+        if (first > last) return -1
+        if (natural + hop > input.size) return first
+
+        var best = first
+        var bestScore = Float.NEGATIVE_INFINITY
+        for (candidate in first..last) {
+            var score = 0f
+            var i = 0
+            while (i < hop) {
+                score += input[natural + i] * input[candidate + i]
+                i += 2
+            }
+            if (score > bestScore) {
+                bestScore = score
+                best = candidate
+            }
+        }
+        return best
+    }
+
+    /**
+     * Periodic Hann window, whose copies half a frame apart add up to exactly 1
+     */
+    private fun windowFor(frame: Int): FloatArray {
+        window.takeIf { it.size == frame }?.let { return it }
+        val created = FloatArray(frame) { i -> (0.5 - 0.5 * cos(2 * PI * i / frame)).toFloat() }
+        window = created
+        return created
+    }
+}
@@ -0,0 +1,311 @@
+package com.edgeai.chatappv2
+
+import java.io.File
+import java.util.Locale
+import kotlin.math.PI
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * TtsBenchmark: Reproducible measurement of a synthesizer over a fixed corpus of short, medium and
+ * long texts, sweeping speed, speaker and thread count. Every combination is run a few times after
+ * a warm-up run and reported as JSON with the median time to the first chunk, the real-time factor,
+ * the peak resident memory and the jitter of the intervals between chunks.
+ *
+ * This file depends on nothing from Android, so the harness also runs on a plain JVM against the
+ * stand-in synthesizer, as the tts-benchmark job of the CI workflow does:
+ *   kotlinc TtsBenchmark.kt -include-runtime -d tts-benchmark.jar
+ *   java -cp tts-benchmark.jar com.edgeai.chatappv2.TtsBenchmarkKt [full]
+ * On the device TtsEngine.runBenchmark drives it with Kokoro.
+ */
+object TtsBenchmark {
+
+    // Resident memory is sampled this often during a run
+    private const val MEMORY_SAMPLE_MS = 5L
+
+    /**
+     * Engine under test, one instance per thread count
+     */
+    interface Synthesizer {
+        val sampleRate: Int
+
+        /**
+         * Synthesize text, handing every chunk to onChunk as soon as it is generated
+         */
+        fun generate(text: String, sid: Int, speed: Float, onChunk: (FloatArray) -> Unit)
+
+        fun release()
+    }
+
+    /**
+     * Creates the synthesizer for a thread count
+     */
+    fun interface Factory {
+        fun create(numThreads: Int): Synthesizer
+    }
+
+    /**
+     * Text of the corpus, length is "short", "medium", "long" or "sample"
+     */
+    class Text(val id: String, val length: String, val text: String)
+
+    /**
+     * Parameters swept, every combination is measured on every text
+     */
+    class Sweep(
+        val speeds: List<Float>,
+        val speakerIds: List<Int>,
+        val threads: List<Int>,
+        val repeats: Int,
+    ) {
+        companion object {
+            @JvmField
+            val FULL = Sweep(listOf(0.75f, 1.0f, 1.5f), listOf(0), listOf(1, 2, 4), 3)
+
+            @JvmField
+            val QUICK = Sweep(listOf(1.0f), listOf(0), listOf(2), 2)
+        }
+
+        fun withSpeakers(ids: List<Int>) = Sweep(speeds, ids.distinct(), threads, repeats)
+    }
+
+    private val FIXED_TEXTS = listOf(
+        Text("short-1", "short", "Sure."),
+        Text("short-2", "short", "Hi! How can I help you?"),
+        Text("medium-1", "medium",
+            "The weather today is mild, with a light breeze from the west and a few clouds in the afternoon."),
+        Text("medium-2", "medium",
+            "To reset the device, hold the power button for ten seconds, then wait until the logo appears."),
+        Text("long-1", "long",
+            "Large language models run on the phone by splitting the work between the CPU, the GPU and the " +
+            "neural processor. The prompt is processed in large batches, which keeps the accelerator busy, " +
+            "while the answer is generated one token at a time. Every token then goes through the text to " +
+            "speech engine sentence by sentence, so the first words are spoken long before the answer is " +
+            "complete. Keeping both running smoothly on the same chip is mostly a matter of giving each the " +
+            "right cores at the right time."),
+    )
+
+    /**
+     * corpus: The fixed texts followed by the given sample texts, e.g. those of the settings preview
+     */
+    @JvmStatic
+    fun corpus(samples: List<String>): List<Text> =
+        FIXED_TEXTS + samples.distinct().mapIndexed { i, text -> Text("sample-${i + 1}", "sample", text) }
+
+    /**
+     * run: Measure every combination of the sweep on every text of the corpus
+     *
+     * @param name engine name reported in the JSON
+     * @param factory creates the engine for each thread count, it is released after its runs
+     *
+     * @return the measurements as a JSON document
+     */
+    @JvmStatic
+    fun run(name: String, factory: Factory, corpus: List<Text>, sweep: Sweep): String {
+        val json = StringBuilder()
+        json.append("{\"synthesizer\":").append(quote(name))
+            .append(",\"cores\":").append(Runtime.getRuntime().availableProcessors())
+            .append(",\"repeats\":").append(sweep.repeats)
+            .append(",\"results\":[")
+
+        var first = true
+        for (threads in sweep.threads) {
+            val synthesizer = factory.create(threads)
+            try {
+                // Kokoro's first run pays for graph optimization and allocations, it is not measured
+                measure(synthesizer, corpus.first().text, sweep.speakerIds.first(), 1.0f)
+
+                for (text in corpus) {
+                    for (sid in sweep.speakerIds) {
+                        for (speed in sweep.speeds) {
+                            val runs = List(sweep.repeats) { measure(synthesizer, text.text, sid, speed) }
+                            if (!first) json.append(',')
+                            first = false
+                            appendResult(json, text, sid, speed, threads, synthesizer.sampleRate, runs)
+                        }
+                    }
+                }
+            } finally {
+                synthesizer.release()
+            }
+        }
+        return json.append("]}").toString()
+    }
+
+    private class Run(
+        val firstChunkMs: Double,
+        val rtf: Double,
+        val audioSeconds: Double,
+        val chunks: Int,
+        val jitterMs: Double,
+        val peakRssBytes: Long,
+    )
+
+    private fun measure(synthesizer: Synthesizer, text: String, sid: Int, speed: Float): Run {
+        val sampler = MemorySampler()
+        val arrivals = ArrayList<Long>()
+        var samples = 0L
+
+        val start = System.nanoTime()
+        try {
+            synthesizer.generate(text, sid, speed) { chunk ->
+                arrivals.add(System.nanoTime())
+                samples += chunk.size
+            }
+        } finally {
+            sampler.stop()
+        }
+        val elapsedSeconds = (System.nanoTime() - start) / 1e9
+
+        val audioSeconds = samples / synthesizer.sampleRate.toDouble()
+        val firstChunkMs = if (arrivals.isEmpty()) Double.NaN else (arrivals[0] - start) / 1e6
+        val intervals = DoubleArray(maxOf(0, arrivals.size - 1)) { i -> (arrivals[i + 1] - arrivals[i]) / 1e6 }
+        return Run(firstChunkMs, if (audioSeconds > 0) elapsedSeconds / audioSeconds else Double.NaN,
+            audioSeconds, arrivals.size, standardDeviation(intervals), sampler.peak)
+    }
+
+    private fun appendResult(json: StringBuilder, text: Text, sid: Int, speed: Float, threads: Int,
+                             sampleRate: Int, runs: List<Run>) {
+        json.append("{\"text\":").append(quote(text.id))
+            .append(",\"length\":").append(quote(text.length))
+            .append(",\"chars\":").append(text.text.length)
+            .append(",\"speed\":").append(number(speed.toDouble()))
+            .append(",\"speakerId\":").append(sid)
+            .append(",\"numThreads\":").append(threads)
+            .append(",\"sampleRate\":").append(sampleRate)
+            .append(",\"audioSeconds\":").append(number(median(runs.map { it.audioSeconds })))
+            .append(",\"chunks\":").append(runs.maxOf { it.chunks })
+            .append(",\"firstChunkMs\":").append(number(median(runs.map { it.firstChunkMs })))
+            .append(",\"rtf\":").append(number(median(runs.map { it.rtf })))
+            .append(",\"rtfMin\":").append(number(runs.minOf { it.rtf }))
+            .append(",\"rtfMax\":").append(number(runs.maxOf { it.rtf }))
+            .append(",\"chunkJitterMs\":").append(number(median(runs.map { it.jitterMs })))
+            .append(",\"peakRssMb\":").append(number(runs.maxOf { it.peakRssBytes } / 1048576.0))
+            .append('}')
+    }
+
+    /**
+     * Samples the resident memory of the process on a background thread until stopped
+     */
+    private class MemorySampler {
+        @Volatile private var running = true
+        @Volatile var peak = residentBytes()
+            private set
+
+        private val thread = Thread({
+            while (running) {
+                peak = maxOf(peak, residentBytes())
+                try {
+                    Thread.sleep(MEMORY_SAMPLE_MS)
+                } catch (e: InterruptedException) {
+                    break
+                }
+            }
+        }, "tts-benchmark-memory").apply {
+            isDaemon = true
+            start()
+        }
+
+        fun stop() {
+            running = false
+            thread.interrupt()
+            thread.join()
+            peak = maxOf(peak, residentBytes())
+        }
+    }
+
+    /**
+     * Resident memory of the process from /proc, the Java heap in use where /proc is not available
+     */
+    private fun residentBytes(): Long {
+        try {
+            val line = File("/proc/self/status").useLines { lines -> lines.firstOrNull { it.startsWith("VmRSS:") } }
+            if (line != null) {
+                return line.substring(6).trim().substringBefore(' ').toLong() * 1024
+            }
+        } catch (e: Exception) {
+            // Not Linux
+        }
+        val runtime = Runtime.getRuntime()
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    private fun median(values: List<Double>): Double {
+        val sorted = values.filter { !it.isNaN() }.sorted()
+        if (sorted.isEmpty()) return Double.NaN
+        val mid = sorted.size / 2
+        return if (sorted.size % 2 == 1) sorted[mid] else (sorted[mid - 1] + sorted[mid]) / 2
+    }
+
+    private fun standardDeviation(values: DoubleArray): Double {
+        if (values.size < 2) return 0.0
+        val mean = values.average()
+        return sqrt(values.sumOf { (it - mean) * (it - mean) } / values.size)
+    }
+
+    // JSON has no NaN, a missing measurement is null
+    private fun number(value: Double): String =
+        if (value.isNaN() || value.isInfinite()) "null" else String.format(Locale.ENGLISH, "%.4f", value)
+
+    private fun quote(value: String): String {
+        val quoted = StringBuilder("\"")
+        for (c in value) {
+            when {
+                c == '"' -> quoted.append("\\\"")
+                c == '\\' -> quoted.append("\\\\")
+                c < ' ' -> quoted.append(String.format(Locale.ENGLISH, "\\u%04x", c.code))
+                else -> quoted.append(c)
+            }
+        }
+        return quoted.append('"').toString()
+    }
+
+    /**
+     * StandIn: Synthesizer without a model, for running the harness where Kokoro is not available.
+     * It speaks a tone for about as long as Kokoro would speak the text, one chunk per sentence,
+     * and takes as long as a Kokoro-like real-time factor for the thread count, so the numbers
+     * move the way the real engine's do.
+     */
+    class StandIn(private val numThreads: Int) : Synthesizer {
+        companion object {
+            // Speech per character at speed 1, and Kokoro's RTF on one thread
+            private const val SECONDS_PER_CHAR = 0.065
+            private const val SINGLE_THREAD_RTF = 0.8
+
+            @JvmField
+            val FACTORY = Factory { numThreads -> StandIn(numThreads) }
+        }
+
+        override val sampleRate = 24000
+
+        override fun generate(text: String, sid: Int, speed: Float, onChunk: (FloatArray) -> Unit) {
+            // Threads help less than linearly, as ONNX Runtime's do
+            val rtf = SINGLE_THREAD_RTF / sqrt(numThreads.toDouble())
+            val pitch = 110.0 + 10 * (sid % 8)
+            for (sentence in text.split(Regex("(?<=[.!?。！？])\\s*")).filter { it.isNotBlank() }) {
+                val start = System.nanoTime()
+                val samples = FloatArray((sentence.length * SECONDS_PER_CHAR / speed * sampleRate).toInt())
+                for (i in samples.indices) {
+                    samples[i] = (0.3 * sin(2 * PI * pitch * i / sampleRate)).toFloat()
+                }
+                val remainingNanos = (samples.size / sampleRate.toDouble() * rtf * 1e9).toLong() -
+                    (System.nanoTime() - start)
+                if (remainingNanos > 0) {
+                    Thread.sleep(remainingNanos / 1_000_000, (remainingNanos % 1_000_000).toInt())
+                }
+                onChunk(samples)
+            }
+        }
+
+        override fun release() {}
+    }
+}
+
+/**
+ * Run the quick sweep on the stand-in synthesizer and print the JSON, the entry point on CI.
+ * Passing "full" runs the full sweep.
+ */
+fun main(args: Array<String>) {
+    val sweep = if (args.firstOrNull() == "full") TtsBenchmark.Sweep.FULL else TtsBenchmark.Sweep.QUICK
+    println(TtsBenchmark.run("stand-in", TtsBenchmark.StandIn.FACTORY, TtsBenchmark.corpus(emptyList()), sweep))
+}
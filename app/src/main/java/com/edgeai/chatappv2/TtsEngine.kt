@@ -6,27 +6,29 @@ import android.content.res.AssetManager
 import android.media.AudioAttributes
 import android.media.AudioFormat
 import android.media.AudioManager
+import android.media.AudioTimestamp
 import android.media.AudioTrack
-import android.media.MediaPlayer
-import android.net.Uri
-import android.os.FileUtils
+import android.os.Debug
+import android.os.Handler
+import android.os.Looper
 import android.util.Log
 import androidx.compose.runtime.MutableState
 import androidx.compose.runtime.mutableStateOf
 import java.io.File
 import java.io.FileOutputStream
 import java.io.IOException
+import java.util.Locale
+import java.util.concurrent.Executors
 import com.edgeai.chatappv2.MainActivity.Companion.TAG
 import com.google.gson.Gson
 import com.google.gson.annotations.SerializedName
-import kotlinx.coroutines.channels.Channel
 
 /**
  * Playback mode for TtsEngine
  */
 enum class TtsPlaybackMode {
     REAL_TIME,   // Use AudioTrack for real-time playback during generation
-    FILE_BASED   // Save to file first, then play with MediaPlayer
+    FILE_BASED   // Synthesize the whole utterance first, then play it from memory
 }
 
 data class Options (
@@ -38,12 +40,41 @@ data class Options (
     var backendPath: String? = null,
 )
 
+/**
+ * Telemetry of the real-time output track
+ */
+data class OutputTelemetry(
+    val underrunCount: Int,         // Underruns of the track since it was created
+    val bufferSizeFrames: Int,      // Part of the buffer in use
+    val bufferCapacityFrames: Int,
+    val framesPlayed: Long,         // Frames presented so far, 0 until the first timestamp
+    val outputLatencyMs: Double,    // Time until a frame written now is heard, NaN without a timestamp
+)
+
 object TtsEngine {
     var tts: OfflineTts? = null
 
-    // Mediaplayer
-    private var player: MediaPlayer? = null
+    // Track of the in-memory playback, and the streaming track of real-time playback
+    private var staticTrack: AudioTrack? = null
+    @Volatile
     private var track: AudioTrack? = null
+
+    // Real-time output: frames per burst of the output device, and the buffer size tuned from underruns
+    private const val MAX_OUTPUT_BUFFER_MS = 200
+    private var framesPerBurst = 256
+    @Volatile
+    private var bufferFrames = 0
+    private var lastUnderruns = 0
+    @Volatile
+    private var framesWritten = 0L
+    private val timestamp = AudioTimestamp()
+
+    // Copy every utterance played from memory to external storage as generated.wav
+    @JvmField
+    var exportWav = false
+    private val exporter = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "wav-export").apply { isDaemon = true }
+    }
     
     // Callback for when playback completes
     private var playbackCompletionListener: (() -> Unit)? = null
@@ -62,13 +93,6 @@ object TtsEngine {
     var lang: String? = null
 
     private val trackStateStopped: MutableState<Boolean> = mutableStateOf(false)
-    private val samplesChannel: MutableState<Channel<FloatArray>> = mutableStateOf(Channel<FloatArray>())
-
-    var sample: Channel<FloatArray>
-        get() = samplesChannel.value
-        set(value) {
-            samplesChannel.value = value
-        }
 
     var trackState: Boolean
         get() = trackStateStopped.value
@@ -82,6 +106,14 @@ object TtsEngine {
     @JvmField
     var speakerId: Int = 0
 
+    // Silence kept between sentences that are synthesized separately
+    @JvmField
+    var sentencePauseMs: Int = 150
+
+    // Synthesized speech of earlier requests, available once the engine is created
+    var cache: PcmCache? = null
+        private set
+
     private var modelDir: String? = null
     private var modelName: String? = null
     private var acousticModelName: String? = null // for matcha tts
@@ -93,6 +125,11 @@ object TtsEngine {
     private var dataDir: String? = null
     private var dictDir: String? = null
     private var assets: AssetManager? = null
+    private var ttsConfig: OfflineTtsConfig? = null
+
+    // Memory taken by one engine instance, measured when the first one is created
+    var instanceBytes = 0L
+        private set
 
     init {
         // The purpose of such a design is to make the CI test easier
@@ -135,6 +172,31 @@ object TtsEngine {
         // We set lang to eng here.
     }
 
+    /**
+     * Key of the speech for text with the current voice, speed and model in the PCM cache
+     */
+    fun cacheKey(text: String): String =
+        PcmCache.key(text, speakerId, speed, "$modelDir/$modelName/$voices")
+
+    /**
+     * Speech for text with the current voice and speed from the PCM cache, null if it has to be
+     * synthesized. Speech cached at another speed is time-stretched instead of synthesized again.
+     */
+    fun cachedSpeech(text: String): PcmCache.Entry? {
+        val cache = cache ?: return null
+        val key = cacheKey(text)
+        cache.get(key)?.let { return it }
+
+        val (source, sourceSpeed) = cache.atAnySpeed(key) ?: return null
+        val start = Debug.threadCpuTimeNanos()
+        val samples = TimeStretch.stretch(source.samples, source.sampleRate, speed / sourceSpeed)
+        val cpuMs = (Debug.threadCpuTimeNanos() - start) / 1e6
+        PerfLog.record("TimeStretch", String.format(Locale.ENGLISH,
+            "Replayed at %.2fx from %.2fx: %.1f s of speech in %.1f ms CPU",
+            speed, sourceSpeed, samples.size / source.sampleRate.toDouble(), cpuMs))
+        return PcmCache.Entry(samples, source.sampleRate)
+    }
+
     /**
      * Set the playback mode to use
      */
@@ -161,6 +223,7 @@ object TtsEngine {
     fun trackFlush() {
         if (playbackMode == TtsPlaybackMode.REAL_TIME && track != null) {
             track!!.flush()
+            framesWritten = 0
         } else {
             Log.d(TAG, "trackFlush called but ignored in ${playbackMode.name} mode")
         }
@@ -193,100 +256,188 @@ object TtsEngine {
 
     fun trackWrite(data: FloatArray, offset: Int, size: Int) {
         if (playbackMode == TtsPlaybackMode.REAL_TIME && track != null) {
-            track!!.write(data, offset, size, AudioTrack.WRITE_BLOCKING)
+            val written = track!!.write(data, offset, size, AudioTrack.WRITE_BLOCKING)
+            if (written > 0) {
+                framesWritten += written
+            }
         } else {
             Log.d(TAG, "trackWrite called but ignored in ${playbackMode.name} mode")
         }
     }
 
-    fun stopMediaPlayer() {
+    /**
+     * Grow the real-time track's buffer by one burst if it underran since the last call,
+     * called by the audio writer after every write. The size is kept for later tracks.
+     *
+     * @return true if the track underran
+     */
+    fun tuneOutputBuffer(): Boolean {
+        val current = track ?: return false
+        val underruns = current.underrunCount
+        if (underruns <= lastUnderruns) return false
+        lastUnderruns = underruns
+
+        val target = minOf(bufferFrames + framesPerBurst, current.bufferCapacityInFrames)
+        if (target > bufferFrames) {
+            val actual = current.setBufferSizeInFrames(target)
+            if (actual > 0) {
+                bufferFrames = actual
+                PerfLog.record("AudioOutput", "Underrun, buffer grown to $actual frames")
+            }
+        }
+        return true
+    }
+
+    /**
+     * Telemetry of the real-time track, called on the audio writer thread
+     *
+     * @return null if there is no real-time track
+     */
+    fun outputTelemetry(): OutputTelemetry? {
+        val current = track ?: return null
+        var framesPlayed = 0L
+        var latencyMs = Double.NaN
+        if (current.getTimestamp(timestamp)) {
+            // Frames queued after the one presented at the timestamp, minus the time since then
+            framesPlayed = timestamp.framePosition
+            val queuedNanos = (framesWritten - timestamp.framePosition) * 1e9 / current.sampleRate
+            latencyMs = (queuedNanos - (System.nanoTime() - timestamp.nanoTime)) / 1e6
+        }
+        return OutputTelemetry(current.underrunCount, current.bufferSizeInFrames,
+            current.bufferCapacityInFrames, framesPlayed, latencyMs)
+    }
+
+    /**
+     * Stop the in-memory playback and release its track
+     */
+    fun stopPlayback() {
         try {
-            Log.d(TAG, "Stopping media player")
-            player?.setOnCompletionListener(null)
-            player?.stop()
-            player?.release()
-            player = null
-            
+            Log.d(TAG, "Stopping in-memory playback")
+            staticTrack?.let {
+                it.setPlaybackPositionUpdateListener(null)
+                if (it.state == AudioTrack.STATE_INITIALIZED) {
+                    it.stop()
+                }
+                it.release()
+            }
+            staticTrack = null
+
             // Reset the running flag
             isTtsRunning = false
         } catch (e: Exception) {
-            Log.e(TAG, "Error stopping media player: ${e.message}")
+            Log.e(TAG, "Error stopping playback: ${e.message}")
         }
     }
 
-    fun onClickPlay(context: Context, applicationPath: String) {
+    /**
+     * Play a complete utterance from memory, called on the main thread.
+     * The samples are handed to a static AudioTrack in one copy, so nothing is written to disk and
+     * there is no player to prepare; if the system cannot provide a static buffer of that size the
+     * samples are streamed to a regular track instead.
+     *
+     * @return false if playback could not be started
+     */
+    fun playSamples(context: Context, samples: FloatArray, sampleRate: Int): Boolean {
         // If TTS is already running, don't start it again
         if (isTtsRunning) {
             Log.i(TAG, "TTS is already running, not starting another instance")
-            return
+            return false
+        }
+        if (playbackMode != TtsPlaybackMode.FILE_BASED) {
+            Log.d(TAG, "playSamples called but ignored in ${playbackMode.name} mode")
+            return false
+        }
+        if (samples.isEmpty()) {
+            return false
         }
-        
-        if (playbackMode == TtsPlaybackMode.FILE_BASED) {
-            try {
-                Log.d(TAG, "Starting media player")
-                isTtsRunning = true
-                
-                val filename = "$applicationPath/generated.wav"
-                // Make sure any previous instance is stopped first
-                stopMediaPlayer()
-
-                val wavFile = File(filename)
-
-                // Create a copy of the file in SDCARD so it can be adb pulled
-                val copyFile = File(context.getExternalFilesDir(null), "generated.wav")
-                if (!copyFile.exists()) {
-                    FileUtils.copy(wavFile.inputStream(), copyFile.outputStream())
-                    Log.i(TAG, "Generated WAV file copied to SDCARD: ${copyFile.absolutePath}")
-                } else {
-                    Log.i(TAG, "Generated WAV file already exists in SDCARD")
-                }
 
-                // Prepare the media player
-                player = MediaPlayer.create(
-                    context,
-                    Uri.fromFile(copyFile)
-                )
-                
-                player = MediaPlayer.create(
-                    context,
-                    Uri.fromFile(wavFile)
-                )
-
-                if (!wavFile.exists()) {
-                    Log.e(TAG, "WAV file does not exist at: ${wavFile.absolutePath}")
-                } else if (wavFile.length() == 0L) {
-                    Log.e(TAG, "WAV file is empty at: ${wavFile.absolutePath}")
-                } else {
-                    Log.d(TAG, "WAV file exists, size: ${wavFile.length()} bytes at ${wavFile.absolutePath}")
-                }
-                
-                if (player == null) {
-                    Log.e(TAG, "Failed to create MediaPlayer")
-                    isTtsRunning = false
-                    return
-                }
-                
-                // Set volume to maximum
-                player?.setVolume(1.0f, 1.0f)
-                
-                // Log media player info
-                Log.i(TAG, "MediaPlayer created successfully. Audio session ID: ${player?.audioSessionId}, " +
-                    "isPlaying: ${player?.isPlaying}")
-                
-                // Set completion listener
-                player?.setOnCompletionListener {
-                    Log.d(TAG, "Media playback completed")
-                    stopMediaPlayer()
-                    playbackCompletionListener?.invoke()
+        try {
+            // Make sure any previous instance is stopped first
+            stopPlayback()
+            isTtsRunning = true
+
+            val bytes = samples.size * 4
+            var player = buildTrack(sampleRate, bytes, AudioTrack.MODE_STATIC)
+            val streamed = player.state != AudioTrack.STATE_INITIALIZED
+            if (streamed) {
+                Log.w(TAG, "No static buffer of $bytes bytes, streaming the utterance instead")
+                player.release()
+                val minBuffer = AudioTrack.getMinBufferSize(
+                    sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_FLOAT)
+                player = buildTrack(sampleRate, minBuffer * 4, AudioTrack.MODE_STREAM)
+            } else {
+                player.write(samples, 0, samples.size, AudioTrack.WRITE_BLOCKING)
+            }
+            staticTrack = player
+
+            // The marker fires on the main thread once the last sample was played
+            player.notificationMarkerPosition = samples.size
+            player.setPlaybackPositionUpdateListener(object : AudioTrack.OnPlaybackPositionUpdateListener {
+                override fun onMarkerReached(track: AudioTrack) {
+                    Log.d(TAG, "In-memory playback completed")
+                    if (track === staticTrack) {
+                        stopPlayback()
+                        playbackCompletionListener?.invoke()
+                    }
                 }
-                
-                player?.start()
-            } catch (e: Exception) {
-                Log.e(TAG, "Error in onClickPlay: ${e.message}")
-                isTtsRunning = false
+
+                override fun onPeriodicNotification(track: AudioTrack) {}
+            }, Handler(Looper.getMainLooper()))
+
+            player.setVolume(1.0f)
+            player.play()
+            if (streamed) {
+                Thread({
+                    player.write(samples, 0, samples.size, AudioTrack.WRITE_BLOCKING)
+                }, "tts-playback").start()
+            }
+            Log.i(TAG, "Playing ${samples.size} samples from memory, audio session ID: ${player.audioSessionId}")
+
+            if (exportWav) {
+                exportWav(context, samples, sampleRate)
+            }
+            return true
+        } catch (e: Exception) {
+            Log.e(TAG, "Error in playSamples: ${e.message}")
+            stopPlayback()
+            return false
+        }
+    }
+
+    private fun buildTrack(sampleRate: Int, bytes: Int, mode: Int,
+                           performanceMode: Int = AudioTrack.PERFORMANCE_MODE_NONE): AudioTrack {
+        val attr = AudioAttributes.Builder()
+            .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+            .setUsage(AudioAttributes.USAGE_MEDIA)
+            .build()
+
+        val format = AudioFormat.Builder()
+            .setEncoding(AudioFormat.ENCODING_PCM_FLOAT)
+            .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+            .setSampleRate(sampleRate)
+            .build()
+
+        return AudioTrack.Builder()
+            .setAudioAttributes(attr)
+            .setAudioFormat(format)
+            .setBufferSizeInBytes(bytes)
+            .setTransferMode(mode)
+            .setPerformanceMode(performanceMode)
+            .setSessionId(AudioManager.AUDIO_SESSION_ID_GENERATE)
+            .build()
+    }
+
+    /**
+     * Write the utterance to the external files directory in the background, so it can be adb pulled
+     */
+    private fun exportWav(context: Context, samples: FloatArray, sampleRate: Int) {
+        val file = File(context.getExternalFilesDir(null), "generated.wav")
+        exporter.execute {
+            if (GeneratedAudio(samples, sampleRate).save(file.absolutePath)) {
+                Log.i(TAG, "Generated WAV file exported to ${file.absolutePath}")
+            } else {
+                Log.e(TAG, "Failed to export WAV file to ${file.absolutePath}")
             }
-        } else {
-            Log.d(TAG, "onClickPlay called but ignored in ${playbackMode.name} mode")
         }
     }
 
@@ -299,7 +450,7 @@ object TtsEngine {
             trackFlush()
             trackStop()
         } else {
-            stopMediaPlayer()
+            stopPlayback()
         }
         
         // Notify listeners that playback has stopped
@@ -314,9 +465,72 @@ object TtsEngine {
         
         if (tts == null) {
             initTts(context, socModel)
+            // Speak the common phrases instantly, and take the cold start off the first request
+            PhraseBank.warmUp()
+            TtsPool.warmUp(context)
+        }
+    }
+
+    /**
+     * Create another engine instance with the configuration of the first, for the synthesis pool
+     *
+     * @param numThreads ONNX Runtime threads of the instance
+     */
+    fun createInstance(numThreads: Int): OfflineTts {
+        val config = ttsConfig ?: throw IllegalStateException("TTS not initialized")
+        val instanceConfig = config.copy(model = config.model.copy(numThreads = numThreads))
+        return ThreadPlacement.withPlacement(InferenceRole.TTS) {
+            OfflineTts(assetManager = assets, config = instanceConfig)
         }
     }
 
+    /**
+     * Run the TTS benchmark with Kokoro on a background thread, once the engine is warmed up.
+     * The JSON report is written to files/tts-benchmark.json, so it can be adb pulled.
+     *
+     * @param sweep parameters to measure, the current voice is always included
+     */
+    fun runBenchmark(context: Context, sweep: TtsBenchmark.Sweep) {
+        val primary = tts ?: return
+        val lang = lang ?: "eng"
+        val file = File(context.filesDir, "tts-benchmark.json")
+        Thread({
+            PhraseBank.awaitWarmUp()
+            TtsPool.awaitWarmUp()
+            PerfLog.record("TtsBenchmark", "Started")
+            val start = System.nanoTime()
+
+            // The engine's own instance is measured as it is, other thread counts get a temporary one
+            val factory = TtsBenchmark.Factory { numThreads ->
+                val engine = if (numThreads == primary.config.model.numThreads) primary else createInstance(numThreads)
+                object : TtsBenchmark.Synthesizer {
+                    override val sampleRate = engine.sampleRate()
+
+                    override fun generate(text: String, sid: Int, speed: Float, onChunk: (FloatArray) -> Unit) {
+                        engine.generateWithCallback(text = text, sid = sid, speed = speed,
+                            callback = { samples -> onChunk(samples); 1 })
+                    }
+
+                    override fun release() {
+                        if (engine !== primary) engine.release()
+                    }
+                }
+            }
+            val corpus = TtsBenchmark.corpus(listOf(getSampleText(lang), TtsSettingsDialog.getSampleText(lang)))
+
+            try {
+                val json = ThreadPlacement.withPlacement(InferenceRole.TTS) {
+                    TtsBenchmark.run(modelDir ?: "tts", factory, corpus, sweep.withSpeakers(sweep.speakerIds + speakerId))
+                }
+                file.writeText(json)
+                PerfLog.record("TtsBenchmark", String.format(Locale.ENGLISH,
+                    "Finished in %.1f s, report written to %s", (System.nanoTime() - start) / 1e9, file.absolutePath))
+            } catch (e: Exception) {
+                Log.e(TAG, "TTS benchmark failed: ${e.message}")
+            }
+        }, "tts-benchmark").start()
+    }
+
     private fun initTts(context: Context, socModel: String) {
         // Remove the previous call to setAdspLibraryPath since we're now calling it in createTts
         assets = context.assets
@@ -393,11 +607,27 @@ object TtsEngine {
             qnnJsonConfig = qnnConfig,
         )
 
+        // Output bursts of the device, the granularity of the real-time buffer
+        val audioManager = context.getSystemService(Context.AUDIO_SERVICE) as AudioManager
+        audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER)?.toIntOrNull()?.let {
+            if (it > 0) framesPerBurst = it
+        }
+
         // Load saved settings
         speed = PreferenceHelper(context).getSpeed()
         speakerId = PreferenceHelper(context).getSpeakerId()
+        sentencePauseMs = PreferenceHelper(context).getSentencePauseMs()
 
-        tts = OfflineTts(assetManager = assets, config = config)
+        cache = PcmCache(File(context.cacheDir, "tts-pcm"))
+
+        // ONNX Runtime worker threads inherit the affinity of the creating thread
+        ttsConfig = config
+        val pssBefore = Debug.getPss()
+        tts = ThreadPlacement.withPlacement(InferenceRole.TTS) {
+            OfflineTts(assetManager = assets, config = config)
+        }
+        instanceBytes = (Debug.getPss() - pssBefore) * 1024
+        Log.i(TAG, "TTS instance takes ${instanceBytes / (1 shl 20)} MB")
         Log.i(TAG, "Start to initialize AudioTrack")
 
         if (playbackMode == TtsPlaybackMode.REAL_TIME) {
@@ -477,21 +707,20 @@ object TtsEngine {
         )
         Log.i(TAG, "sampleRate: $sampleRate, buffLength: $bufLength")
 
-        val attr = AudioAttributes.Builder()
-            .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
-            .setUsage(AudioAttributes.USAGE_MEDIA)
-            .build()
-
-        val format = AudioFormat.Builder()
-            .setEncoding(AudioFormat.ENCODING_PCM_FLOAT)
-            .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
-            .setSampleRate(sampleRate)
-            .build()
-
-        track = AudioTrack(
-            attr, format, bufLength, AudioTrack.MODE_STREAM,
-            AudioManager.AUDIO_SESSION_ID_GENERATE
-        )
+        // Room for the buffer to grow after underruns, only the tuned part of it is used
+        val capacity = maxOf(bufLength, sampleRate * 4 * MAX_OUTPUT_BUFFER_MS / 1000)
+        val created = buildTrack(sampleRate, capacity, AudioTrack.MODE_STREAM,
+            AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+        framesWritten = 0
+        lastUnderruns = 0
+
+        // Start from two bursts, or the size earlier tracks were tuned to
+        val frames = if (bufferFrames > 0) bufferFrames else 2 * framesPerBurst
+        val actual = created.setBufferSizeInFrames(frames)
+        bufferFrames = if (actual > 0) actual else created.bufferSizeInFrames
+        PerfLog.record("AudioOutput", "Low-latency track: buffer $bufferFrames of ${created.bufferCapacityInFrames} frames, " +
+            "burst $framesPerBurst frames, performance mode ${created.performanceMode}")
+        track = created
         
         // Explicitly set the volume to maximum
         track?.setVolume(1.0f)
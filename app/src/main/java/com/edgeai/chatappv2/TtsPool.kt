@@ -0,0 +1,207 @@
+package com.edgeai.chatappv2
+
+import android.app.ActivityManager
+import android.content.Context
+import android.util.Log
+import com.edgeai.chatappv2.MainActivity.Companion.TAG
+import java.util.Locale
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+
+/**
+ * TtsPool: Synthesizes the sentences of a long text on several Kokoro instances at once.
+ * Sentences are handed out in order to whichever instance is free, and the caller receives their
+ * audio strictly in order, each one as soon as it and every sentence before it are ready, so the
+ * first sentence plays while the rest are still being synthesized.
+ *
+ * The pool owns its instances, the engine's own is never lent out: the streaming path, the phrase
+ * bank, the system TTS service and the settings preview keep using that one at the same time, and
+ * an instance must never run two generations at once. The number of instances is bounded by
+ * maxInstances and by how many fit in a share of the memory available when the pool is built.
+ * They are created in the background after the engine, until then long texts use the engine alone.
+ */
+object TtsPool {
+    private const val SECTION = "TtsPool"
+
+    // Share of the available memory the pool's instances may take
+    private const val MEMORY_BUDGET = 0.25
+
+    /**
+     * Most engine instances in the pool, besides the engine's own
+     */
+    @JvmStatic
+    @Volatile
+    var maxInstances = 2
+
+    /**
+     * ONNX Runtime threads of every pool instance
+     */
+    @JvmStatic
+    @Volatile
+    var threadsPerInstance = 2
+
+    // Instances that are not synthesizing, and the number created
+    private val idle = LinkedBlockingQueue<OfflineTts>()
+    @Volatile
+    var size = 0
+        private set
+
+    private var executor: ExecutorService? = null
+    @Volatile
+    private var building: Thread? = null
+
+    // Single-instance runs of playTts, to compare against: [runs, sum of RTF, sum of first audio ms]
+    private val single = DoubleArray(3)
+
+    /**
+     * Stop flag of a synthesis run
+     */
+    fun interface Cancelled {
+        fun isCancelled(): Boolean
+    }
+
+    /**
+     * warmUp: Size the pool by the memory budget and create its instances in the background,
+     * called once the TTS engine is created
+     */
+    @JvmStatic
+    fun warmUp(context: Context) {
+        if (TtsEngine.tts == null || executor != null) return
+
+        val target = chooseSize(context)
+        // A single instance would only take turns with the engine's own, nothing runs in parallel
+        if (target < 2) return
+        executor = Executors.newFixedThreadPool(target) { runnable -> Thread(runnable, "tts-pool") }
+
+        building = Thread({
+            val start = System.nanoTime()
+            for (i in 0 until target) {
+                try {
+                    idle.add(TtsEngine.createInstance(threadsPerInstance))
+                    size++
+                } catch (e: Exception) {
+                    Log.e(TAG, "Failed to create TTS instance ${i + 1}: ${e.message}")
+                    break
+                }
+            }
+            PerfLog.record(SECTION, String.format(Locale.ENGLISH, "%d instances ready in %.0f ms",
+                size, (System.nanoTime() - start) / 1e6))
+        }, "tts-pool-init").apply {
+            priority = Thread.MIN_PRIORITY
+            start()
+        }
+    }
+
+    /**
+     * awaitWarmUp: Wait until the pool's instances are created, so they do not compete with a measurement
+     */
+    @JvmStatic
+    fun awaitWarmUp() {
+        building?.join()
+    }
+
+    private fun chooseSize(context: Context): Int {
+        val memoryInfo = ActivityManager.MemoryInfo()
+        (context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager).getMemoryInfo(memoryInfo)
+        val budget = ((memoryInfo.availMem - memoryInfo.threshold) * MEMORY_BUDGET).toLong()
+        val instanceBytes = TtsEngine.instanceBytes
+        val fitting = if (instanceBytes > 0) (budget / instanceBytes).toInt() else 0
+        val cores = Runtime.getRuntime().availableProcessors()
+        val target = maxOf(0, minOf(maxInstances, fitting, cores / threadsPerInstance))
+        PerfLog.record(SECTION, String.format(Locale.ENGLISH,
+            "%d instances: %d MB available beyond the low memory threshold, %d MB per instance",
+            target, maxOf(0L, memoryInfo.availMem - memoryInfo.threshold) shr 20, instanceBytes shr 20))
+        return target
+    }
+
+    /**
+     * synthesize: Synthesize sentences in parallel and deliver their audio in order
+     *
+     * @param sentences text to speak, in order
+     * @param onAudio receives the samples of every sentence in order, returns false to stop
+     * @param cancelled checked before every sentence is started and while it is generated
+     *
+     * @return all samples in order, empty if the run was stopped
+     */
+    fun synthesize(sentences: List<String>, onAudio: (FloatArray) -> Boolean, cancelled: Cancelled): FloatArray {
+        val pool = executor ?: throw IllegalStateException("TTS pool not initialized")
+        val start = System.nanoTime()
+        val sid = TtsEngine.speakerId
+        val speed = TtsEngine.speed
+
+        // Every sentence waits for a free instance, so at most `size` run at once
+        val futures = ArrayList<Future<FloatArray>>(sentences.size)
+        for (sentence in sentences) {
+            futures.add(pool.submit<FloatArray> {
+                if (cancelled.isCancelled()) return@submit FloatArray(0)
+                val engine = idle.take()
+                try {
+                    ThreadPlacement.withPlacement(InferenceRole.TTS) {
+                        engine.generateWithCallback(text = sentence, sid = sid, speed = speed,
+                            callback = { if (cancelled.isCancelled()) 0 else 1 }).samples
+                    }
+                } finally {
+                    idle.add(engine)
+                }
+            })
+        }
+
+        var firstAudioNanos = 0L
+        var total = 0
+        val parts = ArrayList<FloatArray>(sentences.size)
+        try {
+            for (future in futures) {
+                val samples = future.get()
+                if (cancelled.isCancelled()) break
+                if (firstAudioNanos == 0L) {
+                    firstAudioNanos = System.nanoTime() - start
+                }
+                parts.add(samples)
+                total += samples.size
+                if (!onAudio(samples)) break
+            }
+        } finally {
+            futures.forEach { it.cancel(false) }
+        }
+        if (parts.size < sentences.size) return FloatArray(0)
+
+        val elapsed = (System.nanoTime() - start) / 1e9
+        val audioSeconds = total / TtsEngine.tts!!.sampleRate().toDouble()
+        record(sentences.size, firstAudioNanos / 1e6, elapsed, audioSeconds)
+
+        val all = FloatArray(total)
+        var offset = 0
+        for (part in parts) {
+            System.arraycopy(part, 0, all, offset, part.size)
+            offset += part.size
+        }
+        return all
+    }
+
+    /**
+     * recordSingle: Record a synthesis on the engine's own instance, for comparison
+     */
+    @Synchronized
+    fun recordSingle(elapsedSeconds: Double, audioSeconds: Double) {
+        if (audioSeconds <= 0) return
+        single[0]++
+        single[1] += elapsedSeconds / audioSeconds
+        // The single-instance path plays nothing before the whole text is synthesized
+        single[2] += elapsedSeconds * 1000
+    }
+
+    @Synchronized
+    private fun record(sentences: Int, firstAudioMs: Double, elapsedSeconds: Double, audioSeconds: Double) {
+        val comparison = if (single[0] > 0) {
+            String.format(Locale.ENGLISH, "; single instance: first audio %.0f ms, RTF %.3f over %d runs",
+                single[2] / single[0], single[1] / single[0], single[0].toInt())
+        } else {
+            "; no single-instance run yet"
+        }
+        PerfLog.record(SECTION, String.format(Locale.ENGLISH,
+            "%d sentences on %d instances: first audio %.0f ms, RTF %.3f (%.2f s for %.2f s)%s",
+            sentences, size, firstAudioMs, elapsedSeconds / audioSeconds, elapsedSeconds, audioSeconds, comparison))
+    }
+}
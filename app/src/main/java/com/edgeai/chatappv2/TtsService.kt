@@ -7,9 +7,52 @@ import android.speech.tts.TextToSpeech
 import android.speech.tts.TextToSpeechService
 import android.util.Log
 import com.edgeai.chatappv2.MainActivity.Companion.TAG
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.FloatBuffer
+import java.nio.ShortBuffer
+import java.util.Locale
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
 
-
+/**
+ * TtsService: Kokoro as the system text-to-speech engine.
+ * A request is split into sentences that a worker thread synthesizes ahead, into a small queue of
+ * chunks, while the synthesis thread hands earlier chunks to the client. A stop from the client is
+ * seen between two chunks by both threads, so the generation ends within one chunk.
+ */
 class TtsService : TextToSpeechService() {
+
+    companion object {
+        private const val SECTION = "TtsService"
+
+        // Chunks synthesized ahead of the one being delivered
+        private const val LOOKAHEAD_CHUNKS = 8
+
+        private const val POLL_MS = 20L
+
+        // Waits shorter than this are scheduling noise, not the synthesis falling behind
+        private const val STALL_NANOS = 5_000_000L
+
+        // Marks the end of a request in the chunk queue
+        private val END = FloatArray(0)
+    }
+
+    // Synthesizes the sentences of the current request ahead of playback
+    private val synthesizer = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "tts-service-synthesis")
+    }
+
+    @Volatile private var stopped = false
+    @Volatile private var stopRequestedAt = 0L
+
+    // Conversion buffers, only touched on the synthesis thread
+    private var buffer: ByteBuffer = ByteBuffer.allocate(0)
+    private var floats: FloatBuffer = buffer.asFloatBuffer()
+    private var shorts: ShortBuffer = buffer.asShortBuffer()
+    private var pcm = ShortArray(0)
+
     override fun onCreate() {
         Log.i(TAG, "onCreate tts service")
         super.onCreate()
@@ -20,6 +63,8 @@ class TtsService : TextToSpeechService() {
 
     override fun onDestroy() {
         Log.i(TAG, "onDestroy tts service")
+        stopped = true
+        synthesizer.shutdown()
         super.onDestroy()
     }
 
@@ -53,12 +98,18 @@ class TtsService : TextToSpeechService() {
         }
     }
 
-    override fun onStop() {}
+    override fun onStop() {
+        // Called on a binder thread while the synthesis thread is delivering audio
+        stopRequestedAt = System.nanoTime()
+        stopped = true
+    }
 
     override fun onSynthesizeText(request: SynthesisRequest?, callback: SynthesisCallback?) {
         if (request == null || callback == null) {
             return
         }
+        stopped = false
+        val received = System.nanoTime()
         val language = request.language
         val country = request.country
         val variant = request.variant
@@ -72,51 +123,170 @@ class TtsService : TextToSpeechService() {
         Log.i(TAG, "text: $text")
         val tts = TtsEngine.tts!!
 
-        // Note that AudioFormat.ENCODING_PCM_FLOAT requires API level >= 24
-        // callback.start(tts.sampleRate(), AudioFormat.ENCODING_PCM_FLOAT, 1)
-
-        callback.start(tts.sampleRate(), AudioFormat.ENCODING_PCM_16BIT, 1)
+        // start() accepts float for every callback, so the encoding follows the target of the request:
+        // float samples go to playback as they are, while synthesizeToFile gets 16-bit PCM, because the
+        // file callback writes a WAV header for integer PCM whatever the encoding
+        val useFloat = isPlayback(callback)
+        val encoding = if (useFloat) AudioFormat.ENCODING_PCM_FLOAT else AudioFormat.ENCODING_PCM_16BIT
+        if (callback.start(tts.sampleRate(), encoding, 1) != TextToSpeech.SUCCESS) {
+            callback.error()
+            return
+        }
 
         if (text.isBlank() || text.isEmpty()) {
             callback.done()
             return
         }
 
-        val ttsCallback: (FloatArray) -> Int = fun(floatSamples): Int {
-            // convert FloatArray to ByteArray
-            val samples = floatArrayToByteArray(floatSamples)
-            val maxBufferSize: Int = callback.maxBufferSize
-            var offset = 0
-            while (offset < samples.size) {
-                val bytesToWrite = Math.min(maxBufferSize, samples.size - offset)
-                callback.audioAvailable(samples, offset, bytesToWrite)
-                offset += bytesToWrite
+        // Sentences are synthesized ahead on the synthesis worker while earlier ones are delivered
+        val sentences = ArrayList<String>()
+        SentenceSegmenter { sentence, _ -> sentences.add(sentence) }.apply {
+            append(text)
+            flush()
+        }
+        val chunks = LinkedBlockingQueue<FloatArray>(LOOKAHEAD_CHUNKS)
+        val synthesis = synthesizer.submit { synthesize(tts, sentences, chunks) }
+
+        // Deliver chunks as they arrive, checking for a stop between chunks
+        var firstAudio = 0L
+        var waitNanos = 0L
+        var stalls = 0
+        while (!stopped) {
+            val waitStart = System.nanoTime()
+            val chunk = chunks.poll(POLL_MS, TimeUnit.MILLISECONDS) ?: continue
+            if (chunk === END) break
+            if (firstAudio == 0L) {
+                firstAudio = System.nanoTime() - received
+            } else {
+                // Waiting here means the synthesis fell behind the playback
+                val waited = System.nanoTime() - waitStart
+                if (waited > STALL_NANOS) {
+                    stalls++
+                    waitNanos += waited
+                }
             }
 
-            // 1 means to continue
-            // 0 means to stop
-            return 1
+            if (useFloat) {
+                writeFloat(callback, chunk)
+            } else {
+                writePcm16(callback, chunk)
+            }
         }
 
-        Log.i(TAG, "text: $text")
-        tts.generateWithCallback(
-            text = text,
-            sid = TtsEngine.speakerId,
-            speed = TtsEngine.speed,
-            callback = ttsCallback,
-        )
+        if (stopped) {
+            // Unblock the worker and wait for the generation to notice the stop
+            chunks.clear()
+            try {
+                synthesis.get()
+            } catch (e: Exception) {
+                Log.e(TAG, "TTS service synthesis failed: ${e.message}")
+            }
+            PerfLog.record(SECTION, String.format(Locale.ENGLISH,
+                "Stopped: synthesis ended %.1f ms after the stop request",
+                (System.nanoTime() - stopRequestedAt) / 1e6))
+            return
+        }
 
+        PerfLog.record(SECTION, String.format(Locale.ENGLISH,
+            "Request: %d sentences, first audio after %.1f ms, %d stalls waiting %.1f ms for synthesis",
+            sentences.size, firstAudio / 1e6, stalls, waitNanos / 1e6))
         callback.done()
     }
 
-    private fun floatArrayToByteArray(audio: FloatArray): ByteArray {
-        // byteArray is actually a ShortArray
-        val byteArray = ByteArray(audio.size * 2)
-        for (i in audio.indices) {
-            val sample = (audio[i] * 32767).toInt()
-            byteArray[2 * i] = sample.toByte()
-            byteArray[2 * i + 1] = (sample shr 8).toByte()
+    /**
+     * Whether the audio of a request is played, rather than written to a file by synthesizeToFile.
+     * The framework passes its own callback classes, only the playback one handles float correctly;
+     * anything else gets 16-bit PCM, which every target reads.
+     */
+    private fun isPlayback(callback: SynthesisCallback): Boolean =
+        callback.javaClass.name == "android.speech.tts.PlaybackSynthesisCallback"
+
+    /**
+     * Synthesize every sentence of a request into the chunk queue, on the synthesis worker
+     */
+    private fun synthesize(tts: OfflineTts, sentences: List<String>, chunks: LinkedBlockingQueue<FloatArray>) {
+        try {
+            ThreadPlacement.withPlacement(InferenceRole.TTS) {
+                for (sentence in sentences) {
+                    if (stopped) break
+                    tts.generateWithCallback(
+                        text = sentence,
+                        sid = TtsEngine.speakerId,
+                        speed = TtsEngine.speed,
+                        callback = { samples -> if (offer(chunks, samples)) 1 else 0 },
+                    )
+                }
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "TTS service synthesis failed: ${e.message}")
+        } finally {
+            offer(chunks, END)
+        }
+    }
+
+    /**
+     * Queue a chunk, waiting while the look-ahead is full
+     *
+     * @return false if the request was stopped, the generation should stop too
+     */
+    private fun offer(chunks: LinkedBlockingQueue<FloatArray>, samples: FloatArray): Boolean {
+        while (!stopped) {
+            if (chunks.offer(samples, POLL_MS, TimeUnit.MILLISECONDS)) return true
+        }
+        return false
+    }
+
+    /**
+     * Hand float samples to the client in chunks of at most maxBufferSize bytes
+     */
+    private fun writeFloat(callback: SynthesisCallback, samples: FloatArray) {
+        val buffer = bufferFor(callback)
+        val chunk = buffer.capacity() / 4
+        var offset = 0
+        while (offset < samples.size && !stopped) {
+            val count = minOf(chunk, samples.size - offset)
+            floats.clear()
+            floats.put(samples, offset, count)
+            callback.audioAvailable(buffer.array(), 0, count * 4)
+            offset += count
+        }
+    }
+
+    /**
+     * Convert float samples to clipped 16-bit PCM in the pooled buffer, one chunk at a time
+     */
+    private fun writePcm16(callback: SynthesisCallback, samples: FloatArray) {
+        val buffer = bufferFor(callback)
+        val chunk = buffer.capacity() / 2
+        if (pcm.size < chunk) {
+            pcm = ShortArray(chunk)
+        }
+        val pcm = pcm
+        var offset = 0
+        while (offset < samples.size && !stopped) {
+            val count = minOf(chunk, samples.size - offset)
+            // A plain loop over primitive arrays, simple enough for the compiler to vectorize
+            for (i in 0 until count) {
+                pcm[i] = (samples[offset + i].coerceIn(-1f, 1f) * 32767f).toInt().toShort()
+            }
+            shorts.clear()
+            shorts.put(pcm, 0, count)
+            callback.audioAvailable(buffer.array(), 0, count * 2)
+            offset += count
+        }
+    }
+
+    /**
+     * Conversion buffer of the size the client accepts per call, reused across callbacks and requests
+     */
+    private fun bufferFor(callback: SynthesisCallback): ByteBuffer {
+        // Whole float samples, so a sample never straddles two calls
+        val size = callback.maxBufferSize and 3.inv()
+        if (buffer.capacity() != size) {
+            buffer = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder())
+            floats = buffer.asFloatBuffer()
+            shorts = buffer.asShortBuffer()
         }
-        return byteArray
+        return buffer
     }
-}
\ No newline at end of file
+}
@@ -29,6 +29,8 @@ class TtsSettingsDialog(private val context: Context) {
     private lateinit var dialog: Dialog
     private lateinit var speedValueText: TextView
     private lateinit var speedSeekBar: SeekBar
+    private lateinit var pauseValueText: TextView
+    private lateinit var pauseSeekBar: SeekBar
     private lateinit var speakerContainer: LinearLayout
     private lateinit var speakerSpinner: Spinner
     private lateinit var testTextInput: EditText
@@ -42,6 +44,7 @@ class TtsSettingsDialog(private val context: Context) {
     
     private var numSpeakers = 1
     private var currentSpeed = 1.0f
+    private var currentPauseMs = 150
     private var currentSpeakerId = 0
     
     fun show() {
@@ -53,6 +56,8 @@ class TtsSettingsDialog(private val context: Context) {
         // Get dialog views
         speedValueText = dialogView.findViewById(R.id.speed_value_text)
         speedSeekBar = dialogView.findViewById(R.id.speed_seekbar)
+        pauseValueText = dialogView.findViewById(R.id.pause_value_text)
+        pauseSeekBar = dialogView.findViewById(R.id.pause_seekbar)
         speakerContainer = dialogView.findViewById(R.id.speaker_selection_container)
         speakerSpinner = dialogView.findViewById(R.id.speaker_spinner)
         testTextInput = dialogView.findViewById(R.id.test_text_input)
@@ -76,11 +81,16 @@ class TtsSettingsDialog(private val context: Context) {
         // Get saved settings
         currentSpeed = preferenceHelper.getSpeed()
         currentSpeakerId = preferenceHelper.getSpeakerId()
+        currentPauseMs = preferenceHelper.getSentencePauseMs()
         
         // Update speed controls
         val progress = (currentSpeed * 100).toInt()
         speedSeekBar.progress = progress
         updateSpeedText(currentSpeed)
+
+        // Update pause controls
+        pauseSeekBar.progress = currentPauseMs
+        updatePauseText(currentPauseMs)
         
         // Check if multiple speakers are available
         if (TtsEngine.tts != null) {
@@ -136,6 +146,22 @@ class TtsSettingsDialog(private val context: Context) {
             }
         })
         
+        // Pause seek bar listener, in steps of 10 ms
+        pauseSeekBar.setOnSeekBarChangeListener(object : SeekBar.OnSeekBarChangeListener {
+            override fun onProgressChanged(seekBar: SeekBar, progress: Int, fromUser: Boolean) {
+                currentPauseMs = progress / 10 * 10
+                updatePauseText(currentPauseMs)
+            }
+
+            override fun onStartTrackingTouch(seekBar: SeekBar) {
+                // Not needed
+            }
+
+            override fun onStopTrackingTouch(seekBar: SeekBar) {
+                // Not needed
+            }
+        })
+        
         // Speaker spinner listener
         speakerSpinner.onItemSelectedListener = object : AdapterView.OnItemSelectedListener {
             override fun onItemSelected(parent: AdapterView<*>, view: View?, position: Int, id: Long) {
@@ -166,10 +192,12 @@ class TtsSettingsDialog(private val context: Context) {
             // Save settings
             TtsEngine.speed = currentSpeed
             TtsEngine.speakerId = currentSpeakerId
+            TtsEngine.sentencePauseMs = currentPauseMs
             
             // Save to preferences
             preferenceHelper.setSpeed(currentSpeed)
             preferenceHelper.setSpeakerId(currentSpeakerId)
+            preferenceHelper.setSentencePauseMs(currentPauseMs)
             
             // Show confirmation
             Toast.makeText(context, "TTS settings saved", Toast.LENGTH_SHORT).show()
@@ -183,6 +211,10 @@ class TtsSettingsDialog(private val context: Context) {
         speedValueText.text = String.format(Locale.getDefault(), "%.1f×", speed)
     }
     
+    private fun updatePauseText(pauseMs: Int) {
+        pauseValueText.text = String.format(Locale.getDefault(), "%d ms", pauseMs)
+    }
+    
     private fun playTestTts(text: String) {
         if (TtsEngine.tts == null) {
             Toast.makeText(context, "TTS engine not initialized", Toast.LENGTH_SHORT).show()
@@ -204,33 +236,32 @@ class TtsSettingsDialog(private val context: Context) {
                 // Reset TTS state
                 TtsEngine.trackState = false
                 
-                // Create dummy callback
-                val dummyCallback: (FloatArray) -> Int = { _ -> 1 }
-                
-                // Generate audio
-                val audio = TtsEngine.tts!!.generateWithCallback(
-                    text = text,
-                    sid = currentSpeakerId,
-                    speed = currentSpeed,
-                    callback = dummyCallback
-                )
-                
-                // Save the generated audio file
-                val filename = context.filesDir.absolutePath + "/generated.wav"
-                val ok = audio.samples.isNotEmpty() && audio.save(filename)
+                // The preview text is in the phrase bank unless it was edited, at another speed it is stretched
+                val audio = TtsEngine.cachedSpeech(text) ?: run {
+                    // Create dummy callback
+                    val dummyCallback: (FloatArray) -> Int = { _ -> 1 }
+
+                    // Generate audio
+                    val generated = ThreadPlacement.withPlacement(InferenceRole.TTS) {
+                        TtsEngine.tts!!.generateWithCallback(
+                            text = text,
+                            sid = currentSpeakerId,
+                            speed = currentSpeed,
+                            callback = dummyCallback
+                        )
+                    }
+                    PcmCache.Entry(generated.samples, generated.sampleRate)
+                }
                 
                 // Play the audio
                 withContext(Dispatchers.Main) {
-                    if (ok) {
-                        // Play the audio
-                        TtsEngine.onClickPlay(context, context.filesDir.absolutePath)
-                        
-                        // Set completion listener
-                        TtsEngine.setPlaybackCompletionListener {
-                            testPlayButton.isEnabled = true
-                            testStopButton.isEnabled = false
-                        }
-                    } else {
+                    // Set completion listener
+                    TtsEngine.setPlaybackCompletionListener {
+                        testPlayButton.isEnabled = true
+                        testStopButton.isEnabled = false
+                    }
+
+                    if (!TtsEngine.playSamples(context, audio.samples, audio.sampleRate)) {
                         Toast.makeText(context, "Failed to generate test audio", Toast.LENGTH_SHORT).show()
                         testPlayButton.isEnabled = true
                         testStopButton.isEnabled = false
@@ -257,14 +288,17 @@ class TtsSettingsDialog(private val context: Context) {
         testStopButton.isEnabled = false
     }
     
-    /**
-     * Get sample text based on language
-     */
-    private fun getSampleText(lang: String): String {
-        return when (lang) {
-            "cmn" -> "你好，这是一个文字转语音的测试。我希望您能听清楚我说的话。"
-            "deu" -> "Hallo, dies ist ein Test der Text-zu-Sprache-Funktionalität. Ich hoffe, Sie können mich klar verstehen."
-            else -> "Hello, this is a test of the text to speech functionality. I hope you can understand me clearly."
+    companion object {
+        /**
+         * Get sample text based on language
+         */
+        @JvmStatic
+        fun getSampleText(lang: String): String {
+            return when (lang) {
+                "cmn" -> "你好，这是一个文字转语音的测试。我希望您能听清楚我说的话。"
+                "deu" -> "Hallo, dies ist ein Test der Text-zu-Sprache-Funktionalität. Ich hoffe, Sie können mich klar verstehen."
+                else -> "Hello, this is a test of the text to speech functionality. I hope you can understand me clearly."
+            }
         }
     }
 } 
\ No newline at end of file